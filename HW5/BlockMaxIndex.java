@@ -0,0 +1,393 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * BlockMaxIndex is a side structure for Block-Max WAND.  The postings
+ * of each long inverted list are divided into blocks of a fixed number
+ * of documents, and for each block the index stores the last docid,
+ * the largest term frequency, and the smallest field length.  A term's
+ * score in any document of a block is at most its score for that
+ * frequency and length, which is usually much less than its largest
+ * score in the whole list.
+ * <p>
+ * The index is built offline from the Lucene index:
+ * </p>
+ * <pre>
+ *    java BlockMaxIndex indexPath [blockSize]
+ * </pre>
+ * <p>
+ * and is written to a file in the index directory.  {@link Idx} loads
+ * it if it exists and was built from the same version of the index.
+ * Lists shorter than two blocks are not stored; their global maximum
+ * score is nearly as tight.
+ * </p><p>
+ * File format (big-endian):  a header (magic number, maxDoc, index
+ * version, block size, number of lists, number of blocks), a directory
+ * of (field, term, first block, number of blocks), and then the last
+ * docids, largest tfs, and smallest lengths of all blocks.
+ * </p>
+ */
+public class BlockMaxIndex {
+
+  /**
+   * The name of the block-max file in the index directory.
+   */
+  public static final String FILE_NAME = "blockMax.bin";
+
+  /**
+   * The default number of documents in a block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 128;
+
+  private static final int MAGIC = 0x424d5831;		// "BMX1"
+
+  private static final String USAGE =
+    "Usage:  java BlockMaxIndex indexPath [blockSize]\n\n";
+
+  private int blockSize;
+  private Map<String, int[]> lists = new HashMap<String, int[]>();
+  private int[] lastDocids;
+  private int[] maxTfs;
+  private int[] minLengths;
+
+  /**
+   * A forward cursor over the blocks of one inverted list.
+   */
+  public class Cursor {
+
+    private int first;
+    private int end;
+    private int block;
+
+    private Cursor(int first, int numBlocks) {
+      this.first = first;
+      this.end = first + numBlocks;
+      this.block = first;
+    }
+
+    /**
+     * Move to the block that contains docid, i.e., the first block
+     * whose last docid is at least docid.  Moving forward is fast;
+     * moving backward restarts at the first block.
+     *
+     * @param docid An internal docid.
+     * @return False if docid is after the last block.
+     */
+    public boolean advance(int docid) {
+
+      if ((this.block > this.first) && (lastDocids[this.block - 1] >= docid)) {
+        this.block = this.first;
+      }
+
+      //  Gallop to a block at or past docid, then binary search.
+
+      int lo = this.block;
+      int step = 1;
+
+      while ((lo + step < this.end) && (lastDocids[lo + step] < docid)) {
+        lo += step;
+        step <<= 1;
+      }
+
+      int hi = Math.min(lo + step, this.end);
+
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+
+        if (lastDocids[mid] < docid) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      this.block = lo;
+      return (this.block < this.end);
+    }
+
+    /**
+     * @return The last docid of the current block.
+     */
+    public int getLastDocid() {
+      return lastDocids[this.block];
+    }
+
+    /**
+     * @return The largest term frequency in the current block.
+     */
+    public int getMaxTf() {
+      return maxTfs[this.block];
+    }
+
+    /**
+     * @return The smallest field length in the current block.
+     */
+    public int getMinLength() {
+      return minLengths[this.block];
+    }
+  }
+
+  /**
+   * Load the block-max index of an index.
+   *
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param indexPath The directory that contains the index.
+   * @return The block-max index, or null if there isn't one or it was
+   *   built from a different version of the index.
+   * @throws IOException Error reading the file.
+   */
+  public static BlockMaxIndex open(IndexReader reader, String indexPath)
+    throws IOException {
+
+    File file = new File(indexPath, FILE_NAME);
+
+    if (! file.canRead()) {
+      return null;
+    }
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(file)));
+
+    try {
+      if ((in.readInt() != MAGIC) ||
+          (in.readInt() != reader.maxDoc()) ||
+          (in.readLong() != version(reader))) {
+        return null;
+      }
+
+      BlockMaxIndex index = new BlockMaxIndex();
+      index.blockSize = in.readInt();
+
+      int numLists = in.readInt();
+      int numBlocks = in.readInt();
+
+      for (int i = 0; i < numLists; i++) {
+        String field = in.readUTF();
+        String term = in.readUTF();
+        int first = in.readInt();
+        int count = in.readInt();
+        index.lists.put(field + '\t' + term, new int[] { first, count });
+      }
+
+      index.lastDocids = readInts(in, numBlocks);
+      index.maxTfs = readInts(in, numBlocks);
+      index.minLengths = readInts(in, numBlocks);
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int[] readInts(DataInputStream in, int n) throws IOException {
+    int[] values = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      values[i] = in.readInt();
+    }
+    return values;
+  }
+
+  private static long version(IndexReader reader) {
+    return (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion() : -1;
+  }
+
+  /**
+   * @return The number of documents in a block.
+   */
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
+  /**
+   * Returns a cursor over the blocks of an inverted list.
+   *
+   * @param field The field that the term occurs in.
+   * @param term The processed (stemmed, lower-cased, etc) term string.
+   * @return A cursor, or null if the list has no blocks.
+   */
+  public Cursor getCursor(String field, String term) {
+    int[] list = this.lists.get(field + '\t' + term);
+    return (list == null) ? null : new Cursor(list[0], list[1]);
+  }
+
+  /**
+   * Build the block-max index of every field that has lengths.
+   *
+   * @param reader The index.
+   * @param file The file to write.
+   * @param blockSize The number of documents in a block.
+   * @throws IOException Error accessing the index or writing the file.
+   */
+  public static void build(IndexReader reader, File file, int blockSize)
+    throws IOException {
+
+    DocLengthStore lengthStore = new DocLengthStore(reader);
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    Fields fields = MultiFields.getFields(reader);
+
+    ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+    DataOutputStream directory = new DataOutputStream(directoryBytes);
+    IntArray lastDocids = new IntArray();
+    IntArray maxTfs = new IntArray();
+    IntArray minLengths = new IntArray();
+    int numLists = 0;
+
+    for (String field : fields) {
+      int[] docLengths;
+
+      try {
+        docLengths = lengthStore.getDocLengths(field);
+      } catch (IllegalArgumentException ex) {
+        continue;		// Fields without lengths (e.g., externalId).
+      }
+
+      Terms terms = fields.terms(field);
+
+      if (terms == null) {
+        continue;
+      }
+
+      TermsEnum termsEnum = terms.iterator(null);
+      DocsEnum docsEnum = null;
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next()) != null) {
+
+        if (termsEnum.docFreq() < 2 * blockSize) {
+          continue;
+        }
+
+        docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+
+        int first = lastDocids.size;
+        int n = 0;
+        int lastDocid = -1;
+        int maxTf = 0;
+        int minLength = Integer.MAX_VALUE;
+
+        while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          lastDocid = docsEnum.docID();
+          maxTf = Math.max(maxTf, docsEnum.freq());
+          minLength = Math.min(minLength, docLengths[lastDocid]);
+
+          if (++n == blockSize) {
+            lastDocids.add(lastDocid);
+            maxTfs.add(maxTf);
+            minLengths.add(minLength);
+            n = 0;
+            maxTf = 0;
+            minLength = Integer.MAX_VALUE;
+          }
+        }
+
+        if (n > 0) {
+          lastDocids.add(lastDocid);
+          maxTfs.add(maxTf);
+          minLengths.add(minLength);
+        }
+
+        directory.writeUTF(field);
+        directory.writeUTF(termBytes.utf8ToString());
+        directory.writeInt(first);
+        directory.writeInt(lastDocids.size - first);
+        numLists++;
+      }
+    }
+
+    directory.flush();
+
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(tmp)));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(reader.maxDoc());
+      out.writeLong(version(reader));
+      out.writeInt(blockSize);
+      out.writeInt(numLists);
+      out.writeInt(lastDocids.size);
+      directoryBytes.writeTo(out);
+      lastDocids.writeTo(out);
+      maxTfs.writeTo(out);
+      minLengths.writeTo(out);
+    } finally {
+      out.close();
+    }
+
+    if (! tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Unable to write " + file);
+    }
+  }
+
+  /**
+   * A growable int array.
+   */
+  private static class IntArray {
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    private void add(int value) {
+      if (this.size == this.values.length) {
+        int[] bigger = new int[2 * this.size];
+        System.arraycopy(this.values, 0, bigger, 0, this.size);
+        this.values = bigger;
+      }
+      this.values[this.size++] = value;
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+      for (int i = 0; i < this.size; i++) {
+        out.writeInt(this.values[i]);
+      }
+    }
+  }
+
+  /**
+   * Build the block-max index of an index.
+   *
+   * @param args indexPath [blockSize]
+   * @throws IOException Error accessing the index or writing the file.
+   */
+  public static void main(String[] args) throws IOException {
+
+    if ((args.length < 1) || (args.length > 2)) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    int blockSize = (args.length > 1) ?
+      Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("The block size must be positive.");
+    }
+
+    IndexReader reader =
+      DirectoryReader.open(FSDirectory.open(new File(args[0])));
+
+    try {
+      build(reader, new File(args[0], FILE_NAME), blockSize);
+    } finally {
+      reader.close();
+    }
+  }
+}
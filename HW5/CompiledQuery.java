@@ -0,0 +1,667 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  A query that has been compiled into a flat graph of scorers that
+ *  are specialized for one retrieval model.  The interpreted Qry tree
+ *  decides how to score at every getScore call, with a chain of
+ *  instanceof tests on the retrieval model, and walks ArrayLists of
+ *  arguments.  A compiled query makes those decisions once:  each
+ *  operator becomes a final scorer class for the model, with its
+ *  arguments in an array and its document-independent values
+ *  precomputed (weights here, idf and priors in the #SCORE
+ *  operators' ScoringContext).  The JIT sees small, monomorphic
+ *  loops.
+ *  <p>
+ *  Scorers wrap the initialized QryIop leaves of the tree, so the
+ *  tree must be initialized before it is compiled.  Scores are
+ *  computed with the same arithmetic, in the same order, as the
+ *  interpreted operators, so rankings are identical.  Query trees
+ *  that use an operator the compiler doesn't know are not compiled,
+ *  and should be evaluated by the interpreter.
+ *  </p>
+ */
+public class CompiledQuery {
+
+  //  --------------- Constants and variables ---------------------
+
+  private Scorer root;
+
+  //  --------------- Scorers ---------------------------------------
+
+  /**
+   *  The root of all compiled scorers.  A scorer iterates over the
+   *  documents that its operator matches, in docid order.
+   */
+  private static abstract class Scorer {
+
+    /**
+     *  The docid of the current match, or Integer.MAX_VALUE if there
+     *  are no more matches.  This may advance the scorer's arguments
+     *  (e.g., for #AND in the Boolean models), like
+     *  docIteratorHasMatch.
+     */
+    abstract int match ();
+
+    /**
+     *  The score of the current match, which is docid.
+     */
+    abstract double score (int docid);
+
+    /**
+     *  The score of a document that the scorer doesn't match (Indri).
+     */
+    double defaultScore (int docid) {
+      return 0.0;
+    }
+
+    /**
+     *  The approximation phase of two-phase matching:  the docid of a
+     *  document that the scorer may match, or Integer.MAX_VALUE.  By
+     *  default the approximation is exact.
+     */
+    int approximation () {
+      return this.match ();
+    }
+
+    /**
+     *  The verification phase:  true if the scorer matches the
+     *  document that approximation returned.
+     */
+    boolean verify () {
+      return true;
+    }
+
+    /**
+     *  The log of score (docid).  Indri belief scorers combine their
+     *  arguments in log space, so they override this.
+     */
+    double logScore (int docid) {
+      return Math.log (this.score (docid));
+    }
+
+    /**
+     *  The log of defaultScore (docid).
+     */
+    double logDefaultScore (int docid) {
+      return Math.log (this.defaultScore (docid));
+    }
+
+    abstract void advancePast (int docid);
+
+    abstract void advanceTo (int docid);
+  }
+
+  /**
+   *  A leaf:  a #SCORE operator and its inverted list.  If the list
+   *  has two matching phases (e.g., a lazy #NEAR), docid is a
+   *  candidate until it is verified.
+   */
+  private static abstract class TermScorer extends Scorer {
+
+    protected QryIop iop;
+    protected int docid;
+    private final boolean twoPhase;
+    private boolean verified;
+
+    TermScorer (QryIop iop) {
+      this.iop = iop;
+      this.twoPhase = iop.docIteratorIsTwoPhase ();
+      this.refresh ();
+    }
+
+    private void refresh () {
+      boolean found = (this.twoPhase) ?
+        this.iop.docIteratorHasApproximateMatch (null) :
+        this.iop.docIteratorHasMatch (null);
+
+      this.docid = found ? this.iop.docIteratorGetMatch () : Integer.MAX_VALUE;
+      this.verified = ! this.twoPhase;
+    }
+
+    final int match () {
+      while (! this.verify ()) {
+        this.advancePast (this.docid);
+      }
+      return this.docid;
+    }
+
+    final int approximation () {
+      return this.docid;
+    }
+
+    final boolean verify () {
+      if (! this.verified) {
+        this.verified = (this.docid == Integer.MAX_VALUE) ||
+          this.iop.docIteratorMatches (null);
+      }
+      return this.verified;
+    }
+
+    final void advancePast (int docid) {
+      this.iop.docIteratorAdvancePast (docid);
+      this.refresh ();
+    }
+
+    final void advanceTo (int docid) {
+      this.iop.docIteratorAdvanceTo (docid);
+      this.refresh ();
+    }
+  }
+
+  /**
+   *  A scorer with arguments.  The current match is cached until the
+   *  scorer is advanced.
+   */
+  private static abstract class OpScorer extends Scorer {
+
+    protected Scorer[] args;
+    private int match = Qry.INVALID_DOCID;
+
+    OpScorer (Scorer[] args) {
+      this.args = args;
+    }
+
+    final int match () {
+      if (this.match == Qry.INVALID_DOCID) {
+        this.match = this.findMatch ();
+      }
+      return this.match;
+    }
+
+    abstract int findMatch ();
+
+    /**
+     *  The smallest docid that any argument matches.
+     */
+    final int matchMin () {
+      int min = Integer.MAX_VALUE;
+
+      for (int i = 0; i < this.args.length; i++) {
+        min = Math.min (min, this.args[i].match ());
+      }
+      return min;
+    }
+
+    /**
+     *  The smallest docid that every argument matches.  The
+     *  arguments' approximations are intersected, and a document is
+     *  verified only when they all agree on it.
+     */
+    final int matchAll () {
+
+      while (true) {
+        int docid_0 = this.args[0].approximation ();
+
+        if (docid_0 == Integer.MAX_VALUE) {
+          return docid_0;
+        }
+
+        boolean matchFound = true;
+
+        for (int i = 1; i < this.args.length; i++) {
+          this.args[i].advanceTo (docid_0);
+
+          int docid_i = this.args[i].approximation ();
+
+          if (docid_i == Integer.MAX_VALUE) {
+            return docid_i;
+          }
+
+          if (docid_i != docid_0) {
+            this.args[0].advanceTo (docid_i);
+            matchFound = false;
+            break;
+          }
+        }
+
+        if (matchFound) {
+          for (int i = 0; i < this.args.length; i++) {
+            if (! this.args[i].verify ()) {
+              this.args[0].advancePast (docid_0);
+              matchFound = false;
+              break;
+            }
+          }
+        }
+
+        if (matchFound) {
+          return docid_0;
+        }
+      }
+    }
+
+    final void advancePast (int docid) {
+      for (int i = 0; i < this.args.length; i++) {
+        this.args[i].advancePast (docid);
+      }
+      this.match = Qry.INVALID_DOCID;
+    }
+
+    final void advanceTo (int docid) {
+      for (int i = 0; i < this.args.length; i++) {
+        this.args[i].advanceTo (docid);
+      }
+      this.match = Qry.INVALID_DOCID;
+    }
+  }
+
+  /**
+   *  #SCORE for BM25.
+   */
+  private static final class Bm25Term extends TermScorer {
+
+    private ScoringContext context;
+
+    Bm25Term (QryIop iop, ScoringContext context) {
+      super (iop);
+      this.context = context;
+    }
+
+    double score (int docid) {
+      return this.context.scoreBM25 ((double) this.iop.getTf (), docid);
+    }
+  }
+
+  /**
+   *  #SUM for BM25.
+   */
+  private static final class Bm25Sum extends OpScorer {
+
+    Bm25Sum (Scorer[] args) {
+      super (args);
+    }
+
+    int findMatch () {
+      return this.matchMin ();
+    }
+
+    double score (int docid) {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].match () == docid) {
+          score = score + this.args[i].score (docid);
+        }
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  #SCORE for Indri.
+   */
+  private static final class IndriTerm extends TermScorer {
+
+    private ScoringContext context;
+
+    IndriTerm (QryIop iop, ScoringContext context) {
+      super (iop);
+      this.context = context;
+    }
+
+    double score (int docid) {
+      return this.context.scoreIndri ((double) this.iop.getTf (), docid);
+    }
+
+    double defaultScore (int docid) {
+      return this.context.defaultScoreIndri (docid);
+    }
+  }
+
+  /**
+   *  #AND for Indri:  (1/n) times the log of the product of the
+   *  arguments' scores, computed as QrySopAnd does.
+   */
+  private static final class IndriAnd extends OpScorer {
+
+    private double weight;
+
+    IndriAnd (Scorer[] args, double[] weights) {
+      super (args);
+      this.weight = weights[0];
+    }
+
+    int findMatch () {
+      return this.matchMin ();
+    }
+
+    double score (int docid) {
+      return Math.exp (this.logScore (docid));
+    }
+
+    double defaultScore (int docid) {
+      return Math.exp (this.logDefaultScore (docid));
+    }
+
+    double logScore (int docid) {
+      double logScore = 0.0;
+      double product = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double score = (this.args[i].match () == docid) ?
+          this.args[i].score (docid) : this.args[i].defaultScore (docid);
+
+        if (product < QrySopAnd.MIN_PRODUCT) {
+          logScore += Math.log (product);
+          product = 1.0;
+        }
+        product *= score;
+      }
+      return this.weight * (logScore + Math.log (product));
+    }
+
+    double logDefaultScore (int docid) {
+      double logScore = 0.0;
+      double product = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double score = this.args[i].defaultScore (docid);
+
+        if (product < QrySopAnd.MIN_PRODUCT) {
+          logScore += Math.log (product);
+          product = 1.0;
+        }
+        product *= score;
+      }
+      return this.weight * (logScore + Math.log (product));
+    }
+  }
+
+  /**
+   *  #WAND for Indri:  the weighted sum of the arguments' log scores.
+   *  Arguments with weight 0 are skipped, as QrySopWand does.
+   */
+  private static final class IndriWand extends OpScorer {
+
+    private double[] weights;
+
+    IndriWand (Scorer[] args, double[] weights) {
+      super (args);
+      this.weights = weights;
+    }
+
+    int findMatch () {
+      return this.matchMin ();
+    }
+
+    double score (int docid) {
+      return Math.exp (this.logScore (docid));
+    }
+
+    double defaultScore (int docid) {
+      return Math.exp (this.logDefaultScore (docid));
+    }
+
+    double logScore (int docid) {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.weights[i] == 0.0) {
+          continue;
+        }
+
+        if (this.args[i].match () == docid) {
+          score += this.weights[i] * this.args[i].logScore (docid);
+        } else {
+          score += this.weights[i] * this.args[i].logDefaultScore (docid);
+        }
+      }
+      return score;
+    }
+
+    double logDefaultScore (int docid) {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.weights[i] != 0.0) {
+          score += this.weights[i] * this.args[i].logDefaultScore (docid);
+        }
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  #WSUM for Indri.
+   */
+  private static final class IndriWsum extends OpScorer {
+
+    private double[] weights;
+
+    IndriWsum (Scorer[] args, double[] weights) {
+      super (args);
+      this.weights = weights;
+    }
+
+    int findMatch () {
+      return this.matchMin ();
+    }
+
+    double score (int docid) {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].match () == docid) {
+          score += this.weights[i] * this.args[i].score (docid);
+        } else {
+          score += this.weights[i] * this.args[i].defaultScore (docid);
+        }
+      }
+      return score;
+    }
+
+    double defaultScore (int docid) {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.weights[i] * this.args[i].defaultScore (docid);
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  #SCORE for the Boolean models:  1 for unranked, tf for ranked.
+   */
+  private static final class BooleanTerm extends TermScorer {
+
+    private boolean ranked;
+
+    BooleanTerm (QryIop iop, boolean ranked) {
+      super (iop);
+      this.ranked = ranked;
+    }
+
+    double score (int docid) {
+      return this.ranked ? (double) this.iop.getTf () : 1.0;
+    }
+  }
+
+  /**
+   *  #AND for the Boolean models.  The ranked score is the smallest
+   *  argument score.
+   */
+  private static final class BooleanAnd extends OpScorer {
+
+    private boolean ranked;
+
+    BooleanAnd (Scorer[] args, boolean ranked) {
+      super (args);
+      this.ranked = ranked;
+    }
+
+    int findMatch () {
+      return this.matchAll ();
+    }
+
+    double score (int docid) {
+
+      if (! this.ranked) {
+        return 1.0;
+      }
+
+      double min = Integer.MAX_VALUE;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].match () == docid) {
+          min = Math.min (min, this.args[i].score (docid));
+        }
+      }
+      return min;
+    }
+  }
+
+  /**
+   *  #OR for the Boolean models.  The ranked score is the largest
+   *  argument score.
+   */
+  private static final class BooleanOr extends OpScorer {
+
+    private boolean ranked;
+
+    BooleanOr (Scorer[] args, boolean ranked) {
+      super (args);
+      this.ranked = ranked;
+    }
+
+    int findMatch () {
+      return this.matchMin ();
+    }
+
+    double score (int docid) {
+
+      if (! this.ranked) {
+        return 1.0;
+      }
+
+      double max = Double.MIN_VALUE;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].match () == docid) {
+          max = Math.max (max, this.args[i].score (docid));
+        }
+      }
+      return max;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private CompiledQuery (Scorer root) {
+    this.root = root;
+  }
+
+  /**
+   *  Compile an initialized query for a retrieval model.
+   *  @param q The query, after optimizeQuery and initialize.
+   *  @param r The retrieval model.
+   *  @return The compiled query, or null if the query uses an operator
+   *    that the compiler doesn't support for the model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static CompiledQuery compile (Qry q, RetrievalModel r)
+    throws IOException {
+
+    Scorer root = compileScorer (q, r);
+    return (root == null) ? null : new CompiledQuery (root);
+  }
+
+  /**
+   *  Compile a query operator and its arguments.
+   *  @return A scorer, or null if the operator isn't supported.
+   */
+  private static Scorer compileScorer (Qry q, RetrievalModel r)
+    throws IOException {
+
+    if (q instanceof QrySopScore) {
+      QryIop iop = (QryIop) q.args.get (0);
+      ScoringContext context = ((QrySopScore) q).getScoringContext ();
+
+      if (r instanceof RetrievalModelBM25) {
+        return new Bm25Term (iop, context);
+      } else if (r instanceof RetrievalModelIndri) {
+        return new IndriTerm (iop, context);
+      } else if (r instanceof RetrievalModelRankedBoolean) {
+        return new BooleanTerm (iop, true);
+      } else if (r instanceof RetrievalModelUnrankedBoolean) {
+        return new BooleanTerm (iop, false);
+      } else {
+        return null;
+      }
+    }
+
+    if (! (q instanceof QrySop) || (q.args.size () == 0)) {
+      return null;
+    }
+
+    Scorer[] args = new Scorer[q.args.size ()];
+
+    for (int i = 0; i < args.length; i++) {
+      args[i] = compileScorer (q.args.get (i), r);
+
+      if (args[i] == null) {
+        return null;
+      }
+    }
+
+    boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+    if (r instanceof RetrievalModelBM25) {
+      if (q instanceof QrySopSum) {
+        return new Bm25Sum (args);
+      }
+    } else if (r instanceof RetrievalModelIndri) {
+      double[] weights = ((QrySop) q).getNormalizedWeights ();
+
+      if (q instanceof QrySopAnd) {
+        return new IndriAnd (args, weights);
+      } else if (q instanceof QrySopWand) {
+        return new IndriWand (args, weights);
+      } else if (q instanceof QrySopWsum) {
+        return new IndriWsum (args, weights);
+      }
+    } else if (ranked || (r instanceof RetrievalModelUnrankedBoolean)) {
+      if (q instanceof QrySopAnd) {
+        return new BooleanAnd (args, ranked);
+      } else if (q instanceof QrySopOr) {
+        return new BooleanOr (args, ranked);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   *  Score every matching document and collect the best ones.
+   *  @param topK Collects the results.
+   */
+  public void evaluate (TopKCollector topK) {
+    this.evaluate (topK, Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Score every matching document that is before end and collect
+   *  the best ones.  To evaluate a docid range, advance the query to
+   *  the start of the range before compiling it.
+   *  @param topK Collects the results.
+   *  @param end Documents at or after this docid are not evaluated.
+   */
+  public void evaluate (TopKCollector topK, int end) {
+
+    Scorer root = this.root;
+
+    while (true) {
+      int docid = root.match ();
+
+      if (docid >= end) {		// Includes Integer.MAX_VALUE
+        return;
+      }
+
+      topK.collect (docid, root.score (docid));
+      root.advancePast (docid);
+    }
+  }
+}
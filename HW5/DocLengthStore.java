@@ -12,20 +12,79 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * The lengths of each field are copied from Lucene's norms into a dense
+ * int array when the store is opened, so a lookup is a single array
+ * access.  Callers on hot paths should get a field's array once with
+ * {@link #getDocLengths} and index it directly.
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private  Map<String, int[]> values = new HashMap<String, int[]>();
+  private  Map<String, Integer> minValues = new HashMap<String, Integer>();
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
+    int maxDoc = reader.maxDoc();
+
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, field);
+
+      if (norms == null) {
+        continue;		// Fields without norms (e.g., externalId).
+      }
+
+      int[] lengths = new int[maxDoc];
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        lengths[docid] = (int) norms.get(docid);
+      }
+
+      this.values.put(field, lengths);
+    }
+  }
+
+  /**
+   * Returns the lengths of the specified field, indexed by internal
+   * docid.  The array must not be modified.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @throws IllegalArgumentException The field has no lengths.
+   */
+  public int[] getDocLengths(String fieldname) {
+    int[] lengths = values.get(fieldname);
+
+    if (lengths == null) {
+      throw new IllegalArgumentException
+        ("No document lengths for field " + fieldname);
+    }
+    return lengths;
+  }
+
+  /**
+   * Returns the smallest length of the specified field in any document.
+   * It is computed the first time that it is requested.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @throws IllegalArgumentException The field has no lengths.
+   */
+  public int getMinDocLength(String fieldname) {
+    Integer min = minValues.get(fieldname);
+
+    if (min == null) {
+      int m = Integer.MAX_VALUE;
+
+      for (int length : this.getDocLengths(fieldname)) {
+        m = Math.min(m, length);
+      }
+
+      min = m;
+      minValues.put(fieldname, min);
     }
+    return min;
   }
 
   /**
@@ -36,6 +95,6 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return this.getDocLengths(fieldname)[docid];
   }
 }
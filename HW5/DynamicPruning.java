@@ -0,0 +1,713 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  Dynamic pruning for BM25 #SUM queries whose arguments are all
+ *  #SCORE operators, i.e., bag-of-words queries.  Each argument has
+ *  an upper bound on its score (see QrySopScore.getMaxScoreBM25).
+ *  Documents whose bounds show that they can't enter the current top
+ *  k are skipped without being scored.  Two strategies are supported.
+ *  <p>
+ *  WAND keeps the arguments sorted by their current docid and finds
+ *  the first docid (the pivot) at which the sum of the bounds of the
+ *  arguments up to it could beat the top k.  Arguments that are
+ *  behind the pivot jump to it.
+ *  </p><p>
+ *  MaxScore sorts the arguments by bound.  Arguments whose bounds
+ *  together can't beat the top k are non-essential:  a document that
+ *  only they match can't be collected, so candidates come from the
+ *  essential arguments, and the non-essential arguments are advanced
+ *  to a candidate only while it can still win.
+ *  </p><p>
+ *  Block-Max WAND (bmw) finds the pivot like WAND, then checks it
+ *  against the tighter per-block bounds of the {@link BlockMaxIndex}.
+ *  If the blocks that contain the pivot can't beat the top k, the
+ *  arguments up to the pivot skip to the end of the shortest of those
+ *  blocks.  Without a block-max index it behaves like WAND.
+ *  </p><p>
+ *  Indri #AND and #WAND queries whose leaves are all #SCORE operators
+ *  (including nested #AND and #WAND, as in expanded PRF queries) are
+ *  evaluated with MaxScore, whichever strategy is set.  A document's
+ *  score is a weighted geometric mean of its leaf scores, so its
+ *  upper bound is the product of the leaves' default-score bounds
+ *  times a factor for each leaf that matches it.  In log space these
+ *  factors add up like BM25 bounds.  A document is scored only if
+ *  its bound, refined as each leaf is checked, can beat the top k.
+ *  </p><p>
+ *  Documents that are scored get exactly the score that exhaustive
+ *  evaluation gives them (the arguments are summed in query order),
+ *  so rankings are identical.  The strategy is chosen with
+ *  setStrategy; pruning is off by default.
+ *  </p>
+ */
+public class DynamicPruning {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String NONE = "none";
+  public static final String WAND = "wand";
+  public static final String MAXSCORE = "maxscore";
+  public static final String BMW = "bmw";
+
+  private static String strategy = NONE;
+
+  private static long documentsScored = 0;
+  private static long postingsTotal = 0;
+  private static long postingsScored = 0;
+  private static long blocksSkipped = 0;
+
+  /**
+   *  The counters of one evaluation.  They are added to the totals when
+   *  it ends, so threads don't contend for the totals.
+   */
+  private static class Counters {
+    private long documentsScored = 0;
+    private long postingsTotal = 0;
+    private long postingsScored = 0;
+    private long blocksSkipped = 0;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the pruning strategy.
+   *  @param name "none", "wand", "maxscore" or "bmw".
+   */
+  public static void setStrategy (String name) {
+
+    if (! (name.equals (NONE) || name.equals (WAND) ||
+           name.equals (MAXSCORE) || name.equals (BMW))) {
+      throw new IllegalArgumentException
+        ("Unknown dynamic pruning strategy: " + name);
+    }
+
+    DynamicPruning.strategy = name;
+  }
+
+  /**
+   *  Returns true if pruning is enabled.
+   *  @return True if the strategy is not "none".
+   */
+  public static boolean isEnabled () {
+    return ! strategy.equals (NONE);
+  }
+
+  /**
+   *  Returns true if an initialized query can be evaluated with
+   *  dynamic pruning.
+   *  @param q A query.
+   *  @param r The retrieval model.
+   *  @return True if pruning is enabled and q is a BM25 #SUM of
+   *    #SCOREs or an Indri #AND/#WAND tree of #SCOREs.
+   */
+  public static boolean canPrune (Qry q, RetrievalModel r) {
+
+    if (! isEnabled ()) {
+      return false;
+    }
+
+    if (r instanceof RetrievalModelIndri) {
+      return isIndriTree (q);
+    }
+
+    if (! ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum))) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Returns true if q is an #AND or #WAND whose arguments are #SCORE
+   *  operators or (recursively) trees of the same kind.
+   */
+  private static boolean isIndriTree (Qry q) {
+
+    if (! ((q instanceof QrySopAnd) || (q instanceof QrySopWand))) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! ((q_i instanceof QrySopScore) || isIndriTree (q_i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query that canPrune accepted, and
+   *  collect the top documents.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param topK Collects the results.
+   *  @return The postings that were scored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long evaluate (Qry q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+    return evaluate (q, r, topK, Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Evaluate an initialized query that canPrune accepted, and
+   *  collect the top documents that are before end.  The query's
+   *  arguments should already be at the first docid of the range.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param topK Collects the results.
+   *  @param end Documents at or after this docid are not evaluated.
+   *  @return The postings that were scored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long evaluate (Qry q, RetrievalModel r, TopKCollector topK,
+                               int end)
+    throws IOException {
+
+    Counters counts = new Counters ();
+
+    if (r instanceof RetrievalModelIndri) {
+      evaluateIndri (q, r, topK, end, counts);
+      addCounters (counts);
+      return counts.postingsScored;
+    }
+
+    int n = q.args.size ();
+    QrySopScore[] terms = new QrySopScore[n];
+    double[] bounds = new double[n];
+    int[] docids = new int[n];
+    double[] scores = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      terms[i] = (QrySopScore) q.args.get (i);
+      bounds[i] = terms[i].getMaxScoreBM25 (r);
+      docids[i] = currentDocid (terms[i], r, end);
+      counts.postingsTotal += ((QryIop) terms[i].args.get (0)).getDf ();
+    }
+
+    if (strategy.equals (WAND)) {
+      evaluateWand (terms, bounds, docids, scores, r, topK, false, end, counts);
+    } else if (strategy.equals (BMW)) {
+      evaluateWand (terms, bounds, docids, scores, r, topK, true, end, counts);
+    } else {
+      evaluateMaxScore (terms, bounds, docids, scores, r, topK, end, counts);
+    }
+
+    addCounters (counts);
+    return counts.postingsScored;
+  }
+
+  /**
+   *  Add the counters of an evaluation to the totals.
+   */
+  private static synchronized void addCounters (Counters counts) {
+    documentsScored += counts.documentsScored;
+    postingsTotal += counts.postingsTotal;
+    postingsScored += counts.postingsScored;
+    blocksSkipped += counts.blocksSkipped;
+  }
+
+  /**
+   *  WAND evaluation, optionally with block-max bounds.
+   */
+  private static void evaluateWand (QrySopScore[] terms, double[] bounds,
+                                    int[] docids, double[] scores,
+                                    RetrievalModel r, TopKCollector topK,
+                                    boolean blockMax, int end,
+                                    Counters counts)
+    throws IOException {
+
+    int n = terms.length;
+    int[] order = new int[n];	// Argument indexes sorted by docid
+
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+
+    while (true) {
+
+      sortByDocid (order, docids);
+
+      //  Find the pivot.
+
+      int pivot = -1;
+      double bound = 0.0;
+
+      for (int j = 0; j < n; j++) {
+        if (docids[order[j]] == Integer.MAX_VALUE) {
+          break;
+        }
+
+        bound += bounds[order[j]];
+
+        if (topK.canCompete (bound)) {
+          pivot = j;
+          break;
+        }
+      }
+
+      if (pivot < 0) {
+        return;				// No remaining document can win.
+      }
+
+      int pivotDocid = docids[order[pivot]];
+
+      if (blockMax) {
+
+        //  Include every argument that is on the pivot document, then
+        //  check the bounds of the blocks that contain it.  Documents
+        //  before next only match arguments up to the pivot, in
+        //  those blocks.
+
+        while ((pivot + 1 < n) && (docids[order[pivot + 1]] == pivotDocid)) {
+          pivot++;
+        }
+
+        double blockBound = 0.0;
+        int next = (pivot + 1 < n) ? docids[order[pivot + 1]] : Integer.MAX_VALUE;
+
+        for (int j = 0; j <= pivot; j++) {
+          QrySopScore q_j = terms[order[j]];
+          blockBound += q_j.getBlockMaxScoreBM25 (r, pivotDocid);
+
+          int last = q_j.getBlockLastDocid ();
+
+          if (last < Integer.MAX_VALUE) {
+            next = Math.min (next, last + 1);
+          }
+        }
+
+        if (! topK.canCompete (blockBound)) {
+          counts.blocksSkipped++;
+
+          if (next == Integer.MAX_VALUE) {
+            return;			// No remaining document can win.
+          }
+
+          for (int j = 0; j <= pivot; j++) {
+            int i = order[j];
+
+            if (docids[i] < next) {
+              terms[i].docIteratorAdvanceTo (next);
+              docids[i] = currentDocid (terms[i], r, end);
+            }
+          }
+          continue;
+        }
+      }
+
+      if (docids[order[0]] == pivotDocid) {
+
+        //  Every argument before the pivot is on the pivot document.
+
+        for (int i = 0; i < n; i++) {
+          if (docids[i] == pivotDocid) {
+            scores[i] = terms[i].getScore (r);
+          }
+        }
+
+        collect (docids, scores, pivotDocid, topK, counts);
+
+        for (int i = 0; i < n; i++) {
+          if (docids[i] == pivotDocid) {
+            terms[i].docIteratorAdvancePast (pivotDocid);
+            docids[i] = currentDocid (terms[i], r, end);
+          }
+        }
+      } else {
+
+        //  Documents before the pivot can't win.  Skip them.
+
+        for (int j = 0; j < pivot; j++) {
+          int i = order[j];
+
+          if (docids[i] < pivotDocid) {
+            terms[i].docIteratorAdvanceTo (pivotDocid);
+            docids[i] = currentDocid (terms[i], r, end);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   *  MaxScore evaluation.
+   */
+  private static void evaluateMaxScore (QrySopScore[] terms, double[] bounds,
+                                        int[] docids, double[] scores,
+                                        RetrievalModel r, TopKCollector topK,
+                                        int end, Counters counts)
+    throws IOException {
+
+    int n = terms.length;
+    int[] order = new int[n];		// Argument indexes sorted by bound
+    double[] prefixBounds = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+
+    for (int i = 1; i < n; i++) {	// Insertion sort; n is small
+      int o = order[i];
+      int j = i - 1;
+
+      while ((j >= 0) && (bounds[order[j]] > bounds[o])) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = o;
+    }
+
+    for (int j = 0; j < n; j++) {
+      prefixBounds[j] = ((j > 0) ? prefixBounds[j - 1] : 0.0) + bounds[order[j]];
+    }
+
+    //  order[0..essential-1] are the non-essential arguments.
+
+    int essential = 0;
+
+    while ((essential < n) && ! topK.canCompete (prefixBounds[essential])) {
+      essential++;
+    }
+
+    while (essential < n) {
+
+      //  The next candidate is the smallest docid of an essential argument.
+
+      int candidate = Integer.MAX_VALUE;
+
+      for (int j = essential; j < n; j++) {
+        candidate = Math.min (candidate, docids[order[j]]);
+      }
+
+      if (candidate == Integer.MAX_VALUE) {
+        return;
+      }
+
+      double partial = 0.0;
+
+      for (int j = essential; j < n; j++) {
+        int i = order[j];
+
+        if (docids[i] == candidate) {
+          scores[i] = terms[i].getScore (r);
+          partial += scores[i];
+        }
+      }
+
+      //  Add non-essential arguments, largest bound first, while the
+      //  candidate can still win.
+
+      boolean canWin = true;
+
+      for (int j = essential - 1; j >= 0; j--) {
+        int i = order[j];
+
+        if (! topK.canCompete (partial + prefixBounds[j])) {
+          canWin = false;
+          break;
+        }
+
+        if (docids[i] < candidate) {
+          terms[i].docIteratorAdvanceTo (candidate);
+          docids[i] = currentDocid (terms[i], r, end);
+        }
+
+        if (docids[i] == candidate) {
+          scores[i] = terms[i].getScore (r);
+          partial += scores[i];
+        }
+      }
+
+      if (canWin) {
+        collect (docids, scores, candidate, topK, counts);
+      }
+
+      for (int j = 0; j < n; j++) {
+        int i = order[j];
+
+        if (docids[i] == candidate) {
+          terms[i].docIteratorAdvancePast (candidate);
+          docids[i] = currentDocid (terms[i], r, end);
+        }
+      }
+
+      //  The threshold rises when documents are collected, here or by
+      //  the collectors of other partitions of the query.
+
+      while ((essential < n) && ! topK.canCompete (prefixBounds[essential])) {
+        essential++;
+      }
+    }
+  }
+
+  /**
+   *  Indri evaluation of an #AND/#WAND tree.  Each leaf i has an
+   *  exponent e_i, the product of the normalized weights on its path,
+   *  so the log of a document's score is sum(e_i log(leaf score)).  With
+   *  D_i and M_i the leaf's largest default and matched scores, the
+   *  log of the score is at most sum(e_i log D_i) plus, for each leaf
+   *  that matches, gain_i = e_i (log M_i - log D_i).  That is
+   *  MaxScore over the gains.  Candidates are scored by the query
+   *  tree itself, so scores are exactly those of exhaustive
+   *  evaluation.
+   */
+  private static void evaluateIndri (Qry q, RetrievalModel r,
+                                     TopKCollector topK, int end,
+                                     Counters counts)
+    throws IOException {
+
+    int n = countLeaves (q);
+    QrySopScore[] leaves = new QrySopScore[n];
+    double[] exponents = new double[n];
+
+    collectLeaves (q, 1.0, leaves, exponents, 0);
+
+    double logBase = 0.0;
+    double[] gains = new double[n];
+    int[] docids = new int[n];
+    boolean bounded = true;
+
+    for (int i = 0; i < n; i++) {
+      double maxDefault = leaves[i].getMaxScoreDefaultIndri (r);
+      double maxMatch = Math.max (leaves[i].getMaxScoreIndri (r), maxDefault);
+
+      logBase += exponents[i] * Math.log (maxDefault);
+      gains[i] = exponents[i] * (Math.log (maxMatch) - Math.log (maxDefault));
+      docids[i] = currentDocid (leaves[i], r, end);
+      counts.postingsTotal += ((QryIop) leaves[i].args.get (0)).getDf ();
+
+      //  Zero, infinite or NaN bounds (e.g., a term that doesn't
+      //  occur, or zero weights) can't be used.
+
+      if (! ((maxDefault > 0.0) && (exponents[i] > 0.0) &&
+             ! Double.isInfinite (logBase) && ! Double.isNaN (logBase) &&
+             ! Double.isInfinite (gains[i]) && ! Double.isNaN (gains[i]))) {
+        bounded = false;
+      }
+    }
+
+    if (! bounded) {
+      while (q.docIteratorHasMatch (r)) {
+        int docid = q.docIteratorGetMatch ();
+
+        if (docid >= end) {
+          break;
+        }
+
+        topK.collect (docid, ((QrySop) q).getScore (r));
+        counts.documentsScored++;
+        q.docIteratorAdvancePast (docid);
+      }
+      return;
+    }
+
+    //  Sort the leaves by gain.  order[0..essential-1] are the
+    //  non-essential leaves:  together they can't lift a document
+    //  into the top k.
+
+    int[] order = new int[n];
+    double[] prefixGains = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+
+    for (int i = 1; i < n; i++) {
+      int o = order[i];
+      int j = i - 1;
+
+      while ((j >= 0) && (gains[order[j]] > gains[o])) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = o;
+    }
+
+    for (int j = 0; j < n; j++) {
+      prefixGains[j] = ((j > 0) ? prefixGains[j - 1] : 0.0) + gains[order[j]];
+    }
+
+    int essential = 0;
+
+    while ((essential < n) &&
+           ! topK.canCompete (Math.exp (logBase + prefixGains[essential]))) {
+      essential++;
+    }
+
+    while (essential < n) {
+
+      int candidate = Integer.MAX_VALUE;
+
+      for (int j = essential; j < n; j++) {
+        candidate = Math.min (candidate, docids[order[j]]);
+      }
+
+      if (candidate == Integer.MAX_VALUE) {
+        return;
+      }
+
+      double partial = logBase;
+
+      for (int j = essential; j < n; j++) {
+        if (docids[order[j]] == candidate) {
+          partial += gains[order[j]];
+        }
+      }
+
+      //  Check non-essential leaves, largest gain first, while the
+      //  candidate can still win.
+
+      boolean canWin = true;
+
+      for (int j = essential - 1; j >= 0; j--) {
+        int i = order[j];
+
+        if (! topK.canCompete (Math.exp (partial + prefixGains[j]))) {
+          canWin = false;
+          break;
+        }
+
+        if (docids[i] < candidate) {
+          leaves[i].docIteratorAdvanceTo (candidate);
+          docids[i] = currentDocid (leaves[i], r, end);
+        }
+
+        if (docids[i] == candidate) {
+          partial += gains[i];
+        }
+      }
+
+      if (canWin && topK.canCompete (Math.exp (partial))) {
+
+        //  Every leaf is at or after the candidate, so the tree
+        //  matches it and scores it as exhaustive evaluation would.
+
+        q.docIteratorHasMatch (r);
+        topK.collect (candidate, ((QrySop) q).getScore (r));
+        counts.documentsScored++;
+
+        for (int i = 0; i < n; i++) {
+          if (docids[i] == candidate) {
+            counts.postingsScored++;
+          }
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        if (docids[i] == candidate) {
+          leaves[i].docIteratorAdvancePast (candidate);
+          docids[i] = currentDocid (leaves[i], r, end);
+        }
+      }
+
+      while ((essential < n) &&
+             ! topK.canCompete (Math.exp (logBase + prefixGains[essential]))) {
+        essential++;
+      }
+    }
+  }
+
+  private static int countLeaves (Qry q) {
+
+    if (q instanceof QrySopScore) {
+      return 1;
+    }
+
+    int n = 0;
+
+    for (Qry q_i : q.args) {
+      n += countLeaves (q_i);
+    }
+    return n;
+  }
+
+  /**
+   *  Store the leaves of an Indri tree and their exponents, in order.
+   *  @return The index after the last leaf stored.
+   */
+  private static int collectLeaves (Qry q, double exponent,
+                                    QrySopScore[] leaves, double[] exponents,
+                                    int next) {
+
+    if (q instanceof QrySopScore) {
+      leaves[next] = (QrySopScore) q;
+      exponents[next] = exponent;
+      return next + 1;
+    }
+
+    double[] weights = ((QrySop) q).getNormalizedWeights ();
+
+    for (int i = 0; i < q.args.size (); i++) {
+      next = collectLeaves (q.args.get (i), exponent * weights[i],
+                            leaves, exponents, next);
+    }
+    return next;
+  }
+
+  /**
+   *  Sum the scores of the arguments that match a document the way
+   *  QrySopSum does, in query order, and offer it to the collector.
+   */
+  private static void collect (int[] docids, double[] scores, int docid,
+                               TopKCollector topK, Counters counts) {
+    double score = 0.0;
+
+    for (int i = 0; i < docids.length; i++) {
+      if (docids[i] == docid) {
+        score = score + scores[i];
+        counts.postingsScored++;
+      }
+    }
+
+    counts.documentsScored++;
+    topK.collect (docid, score);
+  }
+
+  /**
+   *  The docid of an argument's current match, or Integer.MAX_VALUE
+   *  if it is exhausted or its match is not before end.
+   */
+  private static int currentDocid (QrySopScore q, RetrievalModel r, int end) {
+    int docid = q.docIteratorHasMatch (r) ? q.docIteratorGetMatch () : Integer.MAX_VALUE;
+    return (docid < end) ? docid : Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Insertion sort of argument indexes by docid.  The order from the
+   *  previous call is nearly sorted, so this is fast.
+   */
+  private static void sortByDocid (int[] order, int[] docids) {
+    for (int i = 1; i < order.length; i++) {
+      int o = order[i];
+      int j = i - 1;
+
+      while ((j >= 0) && (docids[order[j]] > docids[o])) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = o;
+    }
+  }
+
+  /**
+   *  Print the pruning counters.
+   */
+  public static synchronized void printStats () {
+    System.out.println ("Dynamic pruning (" + strategy + "):  " +
+                        documentsScored + " documents scored, " +
+                        (postingsTotal - postingsScored) + " of " +
+                        postingsTotal + " postings skipped" +
+                        (strategy.equals (BMW) ?
+                         ", " + blocksSkipped + " block skips" : ""));
+  }
+}
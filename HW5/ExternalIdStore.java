@@ -0,0 +1,328 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+/**
+ * ExternalIdStore maps internal docids to external document ids without
+ * loading stored Lucene documents, and external ids back to internal
+ * docids without running a Lucene query.  The external ids are copied
+ * from the index into a column file the first time the index is opened;
+ * later runs memory-map the file.  The file is rebuilt if it doesn't
+ * match the index.  If it can't be written, the column is kept in
+ * memory instead.
+ * <p>
+ * File format (big-endian):  a header (magic number, maxDoc, index
+ * version, hash table size), maxDoc+1 int offsets into the data region,
+ * the UTF-8 bytes of every external id in docid order, and an
+ * open-addressing hash table over the external ids of live documents.
+ * Each hash table slot holds docid+1, or 0 if it is empty.  Slots are
+ * chosen by String.hashCode, which is stable across runs.
+ * </p>
+ */
+public class ExternalIdStore {
+
+  /**
+   * The name of the column file in the index directory.
+   */
+  public static final String FILE_NAME = "externalIds.col";
+
+  private static final int MAGIC = 0x45584932;		// "EXI2"
+  private static final int HEADER_BYTES = 20;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private ByteBuffer column;
+  private int maxDoc;
+  private int dataStart;
+  private int tableStart;
+  private int tableMask;
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param indexPath The directory that contains the index.
+   * @throws IOException Error reading the index.
+   */
+  public ExternalIdStore(IndexReader reader, String indexPath) throws IOException {
+    this.maxDoc = reader.maxDoc();
+    this.dataStart = HEADER_BYTES + 4 * (this.maxDoc + 1);
+
+    //  The hash table is at least half empty, so probes are short.
+
+    int tableSize = 2;
+
+    while (tableSize < 2 * this.maxDoc) {
+      tableSize <<= 1;
+    }
+
+    this.tableMask = tableSize - 1;
+
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion() : -1;
+
+    File file = new File(indexPath, FILE_NAME);
+
+    if (! this.map(file, version)) {
+      byte[] bytes = build(reader, version);
+
+      try {
+        write(file, bytes);
+      } catch (IOException ex) {
+        // The index directory may be read-only; keep the column in memory.
+      }
+
+      if (! this.map(file, version)) {
+        this.column = ByteBuffer.wrap(bytes);
+      }
+    }
+
+    this.tableStart = this.dataStart + this.column.getInt(this.dataStart - 4);
+  }
+
+  /**
+   * Map the column file if it exists and matches the index.
+   * @return true if the file was mapped.
+   */
+  private boolean map(File file, long version) throws IOException {
+
+    if (! file.canRead()) {
+      return false;
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel();
+
+      if (channel.size() < this.dataStart) {
+        return false;
+      }
+
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.BIG_ENDIAN);
+
+      long tableBytes = 4L * (this.tableMask + 1);
+
+      if ((buffer.getInt(0) != MAGIC) ||
+          (buffer.getInt(4) != this.maxDoc) ||
+          (buffer.getLong(8) != version) ||
+          (buffer.getInt(16) != this.tableMask + 1) ||
+          (this.dataStart + (long) buffer.getInt(this.dataStart - 4) + tableBytes
+           != channel.size())) {
+        return false;
+      }
+
+      this.column = buffer;
+      return true;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Read every external id from the stored documents and lay them
+   * out in the column format.
+   */
+  private byte[] build(IndexReader reader, long version) throws IOException {
+
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    ByteBuffer index = ByteBuffer.allocate(this.dataStart);
+    int[] table = new int[this.tableMask + 1];
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    index.putInt(MAGIC);
+    index.putInt(this.maxDoc);
+    index.putLong(version);
+    index.putInt(table.length);
+
+    for (int docid = 0; docid < this.maxDoc; docid++) {
+      index.putInt(data.size());
+
+      Document d = reader.document(docid);
+      String eid = d.get("externalId");
+
+      if (eid != null) {
+        byte[] b = eid.getBytes(UTF8);
+        data.write(b, 0, b.length);
+
+        //  Deleted documents can't be found by external id.  If two
+        //  documents share an id, the first one wins.
+
+        if ((liveDocs == null) || liveDocs.get(docid)) {
+          int slot = eid.hashCode() & this.tableMask;
+
+          while (table[slot] != 0) {
+            slot = (slot + 1) & this.tableMask;
+          }
+          table[slot] = docid + 1;
+        }
+      }
+    }
+
+    index.putInt(data.size());
+
+    int tableStart = this.dataStart + data.size();
+    ByteBuffer bytes = ByteBuffer.allocate(tableStart + 4 * table.length);
+
+    bytes.put(index.array(), 0, this.dataStart);
+    bytes.put(data.toByteArray(), 0, data.size());
+    bytes.position(tableStart);
+    bytes.asIntBuffer().put(table);
+    return bytes.array();
+  }
+
+  /**
+   * Write the column file.  It is written to a temporary file first,
+   * so a partly written file is never mapped.
+   */
+  private static void write(File file, byte[] bytes) throws IOException {
+
+    File tmp = new File(file.getPath() + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+
+    if (! tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Unable to write " + file);
+    }
+  }
+
+  /**
+   * Returns the external id of the specified document.
+   *
+   * @param docid The internal docid in the lucene index.
+   * @return The external id, or null if the document doesn't have one.
+   */
+  public String get(int docid) {
+    int start = this.column.getInt(HEADER_BYTES + 4 * docid);
+    int end = this.column.getInt(HEADER_BYTES + 4 * (docid + 1));
+
+    if (start == end) {
+      return null;
+    }
+
+    byte[] b = new byte[end - start];
+
+    for (int i = 0; i < b.length; i++) {
+      b[i] = this.column.get(this.dataStart + start + i);
+    }
+
+    return new String(b, UTF8);
+  }
+
+  /**
+   * Returns the internal docid of the live document that has the
+   * specified external id.  Ids that are ASCII are compared directly
+   * against the column, so the lookup doesn't allocate.
+   *
+   * @param externalId An external document id.
+   * @return The internal docid, or -1 if no live document has the id.
+   */
+  public int getInternalDocid(String externalId) {
+    int slot = externalId.hashCode() & this.tableMask;
+
+    while (true) {
+      int entry = this.column.getInt(this.tableStart + 4 * slot);
+
+      if (entry == 0) {
+        return -1;
+      }
+
+      if (this.matches(entry - 1, externalId)) {
+        return entry - 1;
+      }
+
+      slot = (slot + 1) & this.tableMask;
+    }
+  }
+
+  /**
+   * Returns the internal docids of several external ids.
+   *
+   * @param externalIds External document ids.
+   * @return The internal docids, with -1 for ids that weren't found.
+   */
+  public int[] getInternalDocids(String[] externalIds) {
+    int[] docids = new int[externalIds.length];
+
+    for (int i = 0; i < externalIds.length; i++) {
+      docids[i] = this.getInternalDocid(externalIds[i]);
+    }
+    return docids;
+  }
+
+  /**
+   * Compares the external ids of two documents in String.compareTo
+   * order.  ASCII ids are compared directly in the column, so the
+   * comparison doesn't allocate.
+   *
+   * @param docid1 An internal docid.
+   * @param docid2 An internal docid.
+   * @return A negative number, zero, or a positive number if the first
+   *   external id is less than, equal to, or greater than the second.
+   */
+  public int compare(int docid1, int docid2) {
+    int start1 = this.dataStart + this.column.getInt(HEADER_BYTES + 4 * docid1);
+    int end1 = this.dataStart + this.column.getInt(HEADER_BYTES + 4 * (docid1 + 1));
+    int start2 = this.dataStart + this.column.getInt(HEADER_BYTES + 4 * docid2);
+    int end2 = this.dataStart + this.column.getInt(HEADER_BYTES + 4 * (docid2 + 1));
+    int length = Math.min(end1 - start1, end2 - start2);
+
+    for (int i = 0; i < length; i++) {
+      int b1 = this.column.get(start1 + i) & 0xff;
+      int b2 = this.column.get(start2 + i) & 0xff;
+
+      if ((b1 >= 0x80) || (b2 >= 0x80)) {
+        return this.get(docid1).compareTo(this.get(docid2));	// Not ASCII.
+      }
+
+      if (b1 != b2) {
+        return b1 - b2;
+      }
+    }
+
+    return (end1 - start1) - (end2 - start2);
+  }
+
+  /**
+   * Returns true if the specified document's external id equals s.
+   */
+  private boolean matches(int docid, String s) {
+    int start = this.dataStart + this.column.getInt(HEADER_BYTES + 4 * docid);
+    int end = this.dataStart + this.column.getInt(HEADER_BYTES + 4 * (docid + 1));
+    int length = s.length();
+
+    if (end - start < length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+
+      if (c >= 0x80) {
+        return s.equals(this.get(docid));	// Not ASCII; decode the id.
+      }
+
+      if (this.column.get(start + i) != (byte) c) {
+        return false;
+      }
+    }
+
+    return (end - start == length);
+  }
+}
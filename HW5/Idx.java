@@ -18,6 +18,9 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static ExternalIdStore EXTERNALIDSTORE;
+  private static BlockMaxIndex BLOCKMAXINDEX;
+  private static PhraseIndex PHRASEINDEX;
 
   //  --------------- Methods ---------------------------------------
 
@@ -43,16 +46,65 @@ public class Idx {
     return Idx.INDEXREADER.getDocCount (fieldName);
   }
 
+  /**
+   * Get a cursor over the block-max entries of an inverted list, if the
+   * index has a block-max file and the list is long enough to have one.
+   * See {@link BlockMaxIndex}.
+   * @param fieldName The field that the term occurs in.
+   * @param term The processed (stemmed, lower-cased, etc) term string.
+   * @return A cursor, or null.
+   */
+  public static BlockMaxIndex.Cursor getBlockMaxCursor (String fieldName,
+                                                        String term) {
+    return (Idx.BLOCKMAXINDEX == null) ?
+      null : Idx.BLOCKMAXINDEX.getCursor (fieldName, term);
+  }
+
+  /**
+   * Returns true if the index has a phrase file that stores the
+   * inverted list of #NEAR/1 (a b).  See {@link PhraseIndex}.
+   * @param fieldName The field that the phrase occurs in.
+   * @param a The processed (stemmed, lower-cased, etc) first term.
+   * @param b The processed second term.
+   * @return True if the phrase's list is stored.
+   */
+  public static boolean hasPhrase (String fieldName, String a, String b) {
+    return (Idx.PHRASEINDEX != null) && Idx.PHRASEINDEX.contains (fieldName, a, b);
+  }
+
+  /**
+   * Get the stored inverted list of #NEAR/1 (a b).
+   * @param fieldName The field that the phrase occurs in.
+   * @param a The processed (stemmed, lower-cased, etc) first term.
+   * @param b The processed second term.
+   * @return The inverted list, or null if it isn't stored.
+   */
+  public static InvList getPhraseList (String fieldName, String a, String b) {
+    return (Idx.PHRASEINDEX == null) ?
+      null : Idx.PHRASEINDEX.getInvList (fieldName, a, b);
+  }
+
   /**
    * Get the external document id for a document specified by an internal
-   * document id.
+   * document id.  The id comes from the external id column, so the
+   * stored document is not loaded.
    * @param iid The internal document id of the document.
    * @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
-    return eid;
+    return Idx.EXTERNALIDSTORE.get(iid);
+  }
+
+  /**
+   * Compare the external document ids of two documents without
+   * creating String objects for them.
+   * @param iid1 The internal document id of the first document.
+   * @param iid2 The internal document id of the second document.
+   * @return A negative number, zero, or a positive number if the first
+   *   external id is less than, equal to, or greater than the second.
+   */
+  public static int compareExternalDocids(int iid1, int iid2) {
+    return Idx.EXTERNALIDSTORE.compare(iid1, iid2);
   }
 
   /**
@@ -66,10 +118,33 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the lengths of the specified field in every document, indexed
+   *  by internal docid.  Query operators that look up many lengths
+   *  should get the array once and index it directly.  The array must
+   *  not be modified.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the field lengths, including stopword positions.
+   */
+  public static int[] getFieldLengths (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getDocLengths (fieldName);
+  }
+
+  /**
+   * Get the smallest length of the specified field in any document.
+   * Query operators use it to bound smoothed scores.
+   * @param fieldName The field.
+   * @return The smallest length, which may be 0.
+   */
+  public static int getMinFieldLength (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getMinDocLength (fieldName);
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
-   * exists, throw an exception.
+   * exists, throw an exception.  The lookup uses the hash table in the
+   * external id column, so no Lucene query is run.
    * @param externalId
    * @return iternal docid.
    * @throws Exception Could not read the internal document id from the index.
@@ -77,20 +152,25 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
-
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
+    int docid = Idx.EXTERNALIDSTORE.getInternalDocid(externalId);
 
-    if (hits.length < 1) {
+    if (docid < 0) {
       throw new Exception("External id not found.");
     } else {
-      return hits[0].doc;
+      return docid;
     }
   }
 
+  /**
+   * Get the internal document ids for several documents specified by
+   * their external ids.
+   * @param externalIds External document ids.
+   * @return internal docids, with -1 for external ids that don't exist.
+   */
+  public static int[] getInternalDocids(String[] externalIds) {
+    return Idx.EXTERNALIDSTORE.getInternalDocids(externalIds);
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
@@ -139,6 +219,26 @@ public class Idx {
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    //  External ids are read from a column that is built from the
+    //  index once and then memory-mapped.
+
+    Idx.EXTERNALIDSTORE = new ExternalIdStore (Idx.INDEXREADER, indexPath);
+
+    //  The block-max index is optional; it is built offline.
+
+    Idx.BLOCKMAXINDEX = BlockMaxIndex.open (Idx.INDEXREADER, indexPath);
+
+    //  So is the phrase index.
+
+    Idx.PHRASEINDEX = PhraseIndex.open (Idx.INDEXREADER, indexPath);
+
+    //  Inverted lists, length normalizers and results cached from a
+    //  previous index are invalid.
+
+    InvListCache.clear ();
+    ScoringContext.clear ();
+    ResultCache.clear ();
   }
 
 }
@@ -14,11 +14,37 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in primitive arrays rather than as objects.
+ *  The n'th posting is described by docids[n] and tfs[n].  Its
+ *  locations are stored in a single flat array that is shared by
+ *  all postings; positionOffsets[n] is the index of the posting's
+ *  first location.  Locations are delta-encoded within a posting:
+ *  the first location is stored as is, and each later location is
+ *  stored as the difference from the location before it.
+ *  </p><p>
+ *  Bag-of-words scoring only needs term frequencies, so an inverted
+ *  list may be built in frequency-only mode, which does not read
+ *  locations from the index.  If a location is requested anyway, the
+ *  locations of that one document are read from the index on demand.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of an empty inverted list.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   *  The skip table samples every SKIP_INTERVAL'th docid.  It is
+   *  only built for lists that have at least SKIP_MIN_DF postings.
+   */
+  private static final int SKIP_INTERVAL = 64;
+  private static final int SKIP_MIN_DF = 4 * SKIP_INTERVAL;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -37,50 +63,68 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field.  Only the first df entries are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+  private int[] docids;
 
-  //  --------------- Nested classes --------------------------------
+  /**
+   *  Term frequencies:  The number of times the term occurs in the
+   *  specified field of each document.  Only the first df entries
+   *  are valid.
+   */
+  private int[] tfs;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  The index in the positions array of each posting's first
+   *  location.  Only the first df+1 entries are valid; the last
+   *  one marks the end of the last posting.
    */
-  public class DocPosting {
+  private int[] positionOffsets;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
+  /**
+   *  The delta-encoded locations of every posting, in posting order.
+   *  Only the first ctf entries are valid.  Null in frequency-only mode.
+   */
+  private int[] positions;
 
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  The term, which frequency-only lists need to read locations on
+   *  demand.
+   */
+  private String term = null;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  Frequency-only state:  a Lucene inverted list that is opened
+   *  the first time a location is requested, the index of the
+   *  posting whose locations were read last, and those locations.
+   */
+  private DocsAndPositionsEnum lazyEnum = null;
+  private int lazyDocIndex = -1;
+  private int[] lazyPositions = null;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  An optional skip table:  skipDocids[k] is the docid of posting
+   *  k*SKIP_INTERVAL.  Null if the table hasn't been built.
+   */
+  private int[] skipDocids = null;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The largest BM25 tf weight of any posting, and the k_1 and b
+   *  that it was computed for.  NaN if it hasn't been computed.
+   *  Dynamic pruning uses it to bound the term's score.
+   */
+  private double maxTfWeightBM25 = Double.NaN;
+  private double maxTfWeightK1;
+  private double maxTfWeightB;
+
+  /**
+   *  The largest Indri score of any posting, and the mu and lambda
+   *  that it was computed for.  NaN if it hasn't been computed.
+   */
+  private double maxScoreIndri = Double.NaN;
+  private double maxScoreMu;
+  private double maxScoreLambda;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +132,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY, true);
   }
 
   /**
@@ -96,6 +141,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY, true);
   }
 
   /**
@@ -105,18 +151,52 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, with or without locations.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param readPositions False to build a frequency-only list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean readPositions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.term = termString;
 
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int docFreq = Idx.INDEXREADER.docFreq(term);
+
+    if (docFreq < 1) {
+      this.allocate (0, 0, readPositions);
       return;
+    }
+
+    //  The index statistics give the exact array sizes unless there
+    //  are deleted documents, so usually nothing is reallocated.
+
+    long totalTermFreq = Idx.INDEXREADER.totalTermFreq(term);
+
+    if (! readPositions) {
+      this.allocate (docFreq, 0, false);
+      this.readFrequencies (termBytes);
+      this.buildSkipTable ();
+      return;
+    }
+
+    this.allocate (docFreq,
+		   (int) Math.min (Math.max (totalTermFreq, docFreq),
+				   Integer.MAX_VALUE - 8),
+		   true);
 
     //  Lookup the inverted list.
 
@@ -133,17 +213,100 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
 
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
+
+      int prev = 0;
+
+      for (int j = 0; j < tf; j++) {
+        int loc = iList.nextPosition();
+        this.positions[this.ctf + j] = loc - prev;
+        prev = loc;
+      }
+
+      this.df++;
+      this.ctf += tf;
+      this.positionOffsets[this.df] = this.ctf;
+    }
+
+    this.buildSkipTable ();
+  }
+
+  /**
+   *  Read docids and term frequencies, but not locations, from the
+   *  index.
+   *  @param termBytes The term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readFrequencies (BytesRef termBytes) throws IOException {
+
+    DocsEnum iList =
+      MultiFields.getTermDocsEnum(Idx.INDEXREADER,
+				  MultiFields.getLiveDocs(Idx.INDEXREADER),
+				  this.field, termBytes, DocsEnum.FLAG_FREQS);
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
+    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+
+      int tf = iList.freq();
+
+      this.ensureCapacity (this.df + 1, 0);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
       this.df++;
       this.ctf += tf;
     }
   }
 
+  /**
+   *  Allocate the arrays that store postings.
+   *  @param numDocs The number of postings to make room for.
+   *  @param numLocations The number of locations to make room for.
+   *  @param withPositions False for a frequency-only list.
+   */
+  private void allocate (int numDocs, int numLocations, boolean withPositions) {
+    this.docids = new int[numDocs];
+    this.tfs = new int[numDocs];
+
+    if (withPositions) {
+      this.positionOffsets = new int[numDocs + 1];
+      this.positions = new int[numLocations];
+    }
+  }
+
+  /**
+   *  Returns true if the list stores locations; false if it is a
+   *  frequency-only list.
+   *  @return True if locations are stored.
+   */
+  public boolean hasPositions() {
+    return (this.positions != null);
+  }
+
+  /**
+   *  Grow the arrays that store postings, if necessary, so that they
+   *  can hold at least the specified number of postings and locations.
+   *  @param numDocs The number of postings that must fit.
+   *  @param numLocations The number of locations that must fit.
+   */
+  private void ensureCapacity (int numDocs, int numLocations) {
+
+    if (numDocs > this.docids.length) {
+      int capacity = Math.max (numDocs, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+
+      if (this.positionOffsets != null)
+        this.positionOffsets = Arrays.copyOf (this.positionOffsets, capacity + 1);
+    }
+
+    if ((this.positions != null) && (numLocations > this.positions.length)) {
+      int capacity = Math.max (numLocations, this.positions.length * 2);
+      this.positions = Arrays.copyOf (this.positions, capacity);
+    }
+  }
+
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
@@ -152,29 +315,238 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
+
+    int tf = positions.size();
+    int[] locations = new int[tf];
+
+    for (int i = 0; i < tf; i++)
+      locations[i] = positions.get(i);
+
+    return this.appendPosting (docid, locations, tf);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array of positions where the term occurs, in
+   *    ascending order.  Only the first tf entries are used.
+   *  @param tf The number of positions.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int tf) {
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
     if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    if (! this.hasPositions ())
+      throw new IllegalStateException
+        ("Postings can't be appended to a frequency-only inverted list.");
+
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.skipDocids = null;
+
+    int prev = 0;
+
+    for (int j = 0; j < tf; j++) {
+      this.positions[this.ctf + j] = positions[j] - prev;
+      prev = positions[j];
+    }
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.positionOffsets[this.df] = this.ctf;
     return true;
   }
 
+  /**
+   *  Build the skip table if the list is long enough to benefit from
+   *  it.  Lists that are built from the index do this automatically;
+   *  lists that are built with appendPosting may call it when they
+   *  are complete.  Appending postings later discards the table.
+   */
+  public void buildSkipTable () {
+
+    if (this.df < SKIP_MIN_DF) {
+      this.skipDocids = null;
+      return;
+    }
+
+    this.skipDocids = new int[(this.df + SKIP_INTERVAL - 1) / SKIP_INTERVAL];
+
+    for (int k = 0; k < this.skipDocids.length; k++)
+      this.skipDocids[k] = this.docids[k * SKIP_INTERVAL];
+  }
+
+  /**
+   *  Find the first posting at or after index start whose docid is
+   *  at least docid.  Postings that are close to start are found by
+   *  galloping (exponential) search; if the list has a skip table and
+   *  the target is more than one skip interval away, the skip table
+   *  narrows the search to one interval first.
+   *  @param start The index of the first posting to consider.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocidIndex (int start, int docid) {
+
+    //  Most calls advance by zero or one posting.
+
+    if ((start >= this.df) || (this.docids[start] >= docid))
+      return start;
+
+    int lo = start;		// docids[lo] < docid
+    int hi;			// docids[hi] >= docid, or hi == df
+
+    if ((this.skipDocids != null) &&
+	(start + SKIP_INTERVAL < this.df) &&
+	(this.docids[start + SKIP_INTERVAL] < docid)) {
+
+      //  Binary search the skip table for the last sampled docid
+      //  that is below the target.
+
+      int k_lo = (start + SKIP_INTERVAL) / SKIP_INTERVAL;
+      int k_hi = this.skipDocids.length - 1;
+
+      while (k_lo < k_hi) {
+	int k_mid = (k_lo + k_hi + 1) >>> 1;
+	if (this.skipDocids[k_mid] < docid)
+	  k_lo = k_mid;
+	else
+	  k_hi = k_mid - 1;
+      }
+
+      lo = k_lo * SKIP_INTERVAL;
+      hi = Math.min (this.df, (k_lo + 1) * SKIP_INTERVAL);
+    } else {
+
+      //  Gallop:  double the step until it passes the target.
+
+      int step = 1;
+
+      while ((lo + step < this.df) && (this.docids[lo + step] < docid)) {
+	lo += step;
+	step <<= 1;
+      }
+
+      hi = Math.min (this.df, lo + step);
+    }
+
+    //  Binary search (lo, hi].
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      if (this.docids[mid] < docid)
+	lo = mid;
+      else
+	hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Estimate the memory used by the postings, for example to decide
+   *  whether the list fits in a cache.  The buffer that frequency-only
+   *  lists use for locations read on demand is not counted.
+   *  @return The approximate size of the list in bytes.
+   */
+  public long sizeInBytes () {
+
+    long size = 64;		// Object header, fields, and array headers.
+
+    size += 4L * this.docids.length;
+    size += 4L * this.tfs.length;
+
+    if (this.positionOffsets != null)
+      size += 4L * this.positionOffsets.length;
+
+    if (this.positions != null)
+      size += 4L * this.positions.length;
+
+    if (this.skipDocids != null)
+      size += 4L * this.skipDocids.length;
+
+    return size;
+  }
+
+  /**
+   *  Get the largest BM25 tf weight of any posting in the list.  It
+   *  is computed the first time that it is requested for a k_1 and
+   *  b, and kept with the list, so cached lists compute it once.  A
+   *  list may be shared by threads, so this is synchronized.
+   *  @param k_1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The maximum tf weight, or 0 if the list is empty.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized double getMaxTfWeightBM25 (double k_1, double b) throws IOException {
+
+    if (Double.isNaN (this.maxTfWeightBM25) ||
+        (this.maxTfWeightK1 != k_1) || (this.maxTfWeightB != b)) {
+
+      int[] docLengths = Idx.getFieldLengths (this.field);
+      double averageLength = (double) Idx.getSumOfFieldLengths (this.field) /
+                             (double) Idx.getDocCount (this.field);
+      double max = 0.0;
+
+      for (int i = 0; i < this.df; i++) {
+        max = Math.max (max, QrySopScore.getTfWeightBM25 (this.tfs[i],
+                          docLengths[this.docids[i]], averageLength, k_1, b));
+      }
+
+      this.maxTfWeightBM25 = max;
+      this.maxTfWeightK1 = k_1;
+      this.maxTfWeightB = b;
+    }
+
+    return this.maxTfWeightBM25;
+  }
+
+  /**
+   *  Get the largest Indri score of any posting in the list.  Like
+   *  getMaxTfWeightBM25, it is kept with the list.
+   *  @param mu The Indri mu parameter.
+   *  @param lambda The Indri lambda parameter.
+   *  @return The maximum score, or 0 if the list is empty.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized double getMaxScoreIndri (double mu, double lambda) throws IOException {
+
+    if (Double.isNaN (this.maxScoreIndri) ||
+        (this.maxScoreMu != mu) || (this.maxScoreLambda != lambda)) {
+
+      int[] docLengths = Idx.getFieldLengths (this.field);
+      double prior = (double) this.ctf /
+                     (double) Idx.getSumOfFieldLengths (this.field);
+      double max = 0.0;
+
+      for (int i = 0; i < this.df; i++) {
+        max = Math.max (max, QrySopScore.getMatchScoreIndri (this.tfs[i], prior,
+                          docLengths[this.docids[i]], mu, lambda));
+      }
+
+      this.maxScoreIndri = max;
+      this.maxScoreMu = mu;
+      this.maxScoreLambda = lambda;
+    }
+
+    return this.maxScoreIndri;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
   }
 
   /**
@@ -183,7 +555,117 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Get the index in the flat location array of the first location
+   *  of the n'th document.  Use with getPositionDelta to decode the
+   *  document's locations without allocating an array.  Only valid
+   *  if hasPositions is true.
+   *  @param n The index of the requested document.
+   *  @return The index of the document's first location.
+   */
+  public int getPositionOffset(int n) {
+    return this.positionOffsets[n];
+  }
+
+  /**
+   *  Get an encoded entry of the flat location array.  The first
+   *  location of a document is stored as is; each later location is
+   *  stored as the difference from the location before it.
+   *  @param i An index in the flat location array.
+   *  @return The encoded location.
+   */
+  public int getPositionDelta(int i) {
+    return this.positions[i];
+  }
+
+  /**
+   *  Get the locations in the n'th document of the inverted list.
+   *  The locations are decoded into a new array, so iterators should
+   *  prefer getPositionOffset and getPositionDelta.
+   *  @param n The index of the requested document.
+   *  @return The document's locations, in ascending order.
+   */
+  public int[] getPositions(int n) {
+
+    if (! this.hasPositions ()) {
+      synchronized (this) {
+        return Arrays.copyOf (this.getLazyPositions (n), this.tfs[n]);
+      }
+    }
+
+    int tf = this.tfs[n];
+    int offset = this.positionOffsets[n];
+    int[] locations = new int[tf];
+    int loc = 0;
+
+    for (int j = 0; j < tf; j++) {
+      loc += this.positions[offset + j];
+      locations[j] = loc;
+    }
+
+    return locations;
+  }
+
+  /**
+   *  Get the locations in the n'th document of a frequency-only list,
+   *  reading them from the index if they are not already loaded.
+   *  The array is reused by the next call; only the first tf entries
+   *  are valid.  Cached lists are shared by threads, so use
+   *  getLazyPosition unless the list is confined to one thread.
+   *  @param n The index of the requested document.
+   *  @return A buffer that holds the document's locations.
+   */
+  public synchronized int[] getLazyPositions(int n) {
+
+    if (n == this.lazyDocIndex)
+      return this.lazyPositions;
+
+    int docid = this.docids[n];
+    int tf = this.tfs[n];
+
+    try {
+
+      //  Lucene inverted lists only move forward, so reopen the list
+      //  if the requested document is behind it.
+
+      if ((this.lazyEnum == null) || (this.lazyEnum.docID() >= docid)) {
+	this.lazyEnum =
+	  MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
+					   MultiFields.getLiveDocs(Idx.INDEXREADER),
+					   this.field, new BytesRef(this.term));
+      }
+
+      if (this.lazyEnum.advance(docid) != docid)
+	throw new IllegalStateException
+	  ("Document " + docid + " is missing from the inverted list.");
+
+      if ((this.lazyPositions == null) || (this.lazyPositions.length < tf))
+	this.lazyPositions = new int[Math.max (tf, 16)];
+
+      for (int j = 0; j < tf; j++)
+	this.lazyPositions[j] = this.lazyEnum.nextPosition();
+
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error accessing the Lucene index.", ex);
+    }
+
+    this.lazyDocIndex = n;
+    return this.lazyPositions;
+  }
+
+  /**
+   *  Get one location in the n'th document of a frequency-only list,
+   *  reading the document's locations from the index if they are not
+   *  already loaded.  This is safe when threads share the list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the location in the document.
+   *  @return The location.
+   */
+  public synchronized int getLazyPosition(int n, int j) {
+    return this.getLazyPositions(n)[j];
   }
 
   /**
@@ -194,11 +676,13 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
+
+      int[] locations = this.getPositions(i);
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < locations.length; j++) {
+        System.out.print(locations[j] + " ");
       }
 
       System.out.println();
@@ -0,0 +1,187 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A process-wide cache of inverted lists, keyed by (field, term), so
+ *  that queries that share terms don't read the same postings from
+ *  the index again.  The cache has a byte budget and evicts the least
+ *  recently used lists when the budget is exceeded.  A list that is
+ *  larger than the whole budget is not cached.
+ *  <p>
+ *  A cached list that stores locations also satisfies requests for a
+ *  frequency-only list.  The reverse is a miss, and the new list with
+ *  locations replaces the cached one.
+ *  </p><p>
+ *  Cached lists are shared by query operators, so they must not be
+ *  modified.  The cache is disabled until setMaxBytes is called with
+ *  a positive budget.
+ *  </p><p>
+ *  The cache is thread-safe.  Lists are read from the index outside
+ *  the lock, so threads that miss on different terms don't wait for
+ *  each other; two threads that miss on the same term both read it.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The cached lists, in least-recently-used order.
+   */
+  private static LinkedHashMap<String, InvList> LISTS =
+    new LinkedHashMap<String, InvList>(16, 0.75f, true);
+
+  private static volatile long maxBytes = 0;
+  private static long usedBytes = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the byte budget.  A budget of 0 disables the cache.  Lists
+   *  are evicted if the cache is over the new budget.
+   *  @param bytes The maximum number of bytes of cached postings.
+   */
+  public static synchronized void setMaxBytes (long bytes) {
+    InvListCache.maxBytes = Math.max (bytes, 0);
+    InvListCache.evict ();
+  }
+
+  /**
+   *  Returns true if the cache is enabled.
+   *  @return True if the cache has a positive byte budget.
+   */
+  public static boolean isEnabled () {
+    return (InvListCache.maxBytes > 0);
+  }
+
+  /**
+   *  Get the inverted list for a term, from the cache if possible,
+   *  otherwise from the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param readPositions False if a frequency-only list is sufficient.
+   *  @return The inverted list.  It must not be modified.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList get (String termString, String fieldString,
+                             boolean readPositions) throws IOException {
+
+    if (! InvListCache.isEnabled ()) {
+      return new InvList (termString, fieldString, readPositions);
+    }
+
+    String key = fieldString + '\t' + termString;
+    InvList list = InvListCache.lookup (key, readPositions);
+
+    if (list == null) {
+      list = new InvList (termString, fieldString, readPositions);
+      InvListCache.store (key, list);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Find a cached list that satisfies a request, and count the hit or
+   *  miss.
+   *  @return The list, or null.
+   */
+  private static synchronized InvList lookup (String key, boolean readPositions) {
+
+    InvList list = LISTS.get (key);
+
+    if ((list != null) && (list.hasPositions () || ! readPositions)) {
+      hits ++;
+      return list;
+    }
+
+    misses ++;
+    return null;
+  }
+
+  /**
+   *  Cache a list that was read after a miss, unless another thread
+   *  cached a list that is at least as good in the meantime.
+   */
+  private static synchronized void store (String key, InvList list) {
+
+    InvList cached = LISTS.get (key);
+
+    if (cached != null) {
+      if (cached.hasPositions () || ! list.hasPositions ()) {
+        return;
+      }
+
+      LISTS.remove (key);
+      usedBytes -= cached.sizeInBytes ();
+    }
+
+    long size = list.sizeInBytes ();
+
+    if (size <= maxBytes) {
+      LISTS.put (key, list);
+      usedBytes += size;
+      InvListCache.evict ();
+    }
+  }
+
+  /**
+   *  Evict least recently used lists until the cache is within its
+   *  budget.
+   */
+  private static void evict () {
+
+    Iterator<InvList> it = LISTS.values ().iterator ();
+
+    while ((usedBytes > maxBytes) && it.hasNext ()) {
+      usedBytes -= it.next ().sizeInBytes ();
+      it.remove ();
+      evictions ++;
+    }
+  }
+
+  /**
+   *  Discard all cached lists, for example because a different index
+   *  was opened.  The counters are not reset.
+   */
+  public static synchronized void clear () {
+    LISTS.clear ();
+    usedBytes = 0;
+  }
+
+  public static synchronized long getHits () {
+    return hits;
+  }
+
+  public static synchronized long getMisses () {
+    return misses;
+  }
+
+  public static synchronized long getEvictions () {
+    return evictions;
+  }
+
+  public static synchronized long getUsedBytes () {
+    return usedBytes;
+  }
+
+  /**
+   *  Print the cache counters.  This is handy for tuning the budget.
+   */
+  public static synchronized void printStats () {
+    long lookups = hits + misses;
+    System.out.println ("Postings cache:  " + hits + " hits, " + misses +
+                        " misses, " + evictions + " evictions, " +
+                        LISTS.size () + " lists, " +
+                        usedBytes + " of " + maxBytes + " bytes" +
+                        ((lookups > 0) ?
+                         String.format (", hit rate %.1f%%", 100.0 * hits / lookups) : ""));
+  }
+}
@@ -58,6 +58,7 @@ f18: A custom feature - use your imagination.
 public class LTR{
 
 	static int numFeatures = 18; // Maximum number of features
+	static int rerankDepth = 100; // Documents of the initial ranking to rerank
 	Map<String,String > LTRFileParameters; // All the input parameters
 	static int Error = 1234567;
 	int numFeaturesEnabled=0,err_count=0;
@@ -545,7 +546,7 @@ public class LTR{
 				ArrayList<ArrayList<Double>> tempFeatureValue = new ArrayList<ArrayList<Double>>();
 				
 				ScoreList r = null;
-				r = QryEval.processQuery(query,model);
+				r = QryEval.processQuery(query,model,rerankDepth);
 				
 				for(int doc_idx=0;doc_idx< r.size();doc_idx++){
 					
@@ -554,12 +555,8 @@ public class LTR{
 					new_doc.judgment = Integer.toString(0);
 					new_doc.qid = qid;
 					
-					try{
-						new_doc.internalDocID = Idx.getInternalDocid(new_doc.externalDocID);
-					}catch(Exception e){
-						new_doc.internalDocID = Error;
-						continue;
-					}
+					// The score list already has the internal docid.
+					new_doc.internalDocID = r.getDocid(doc_idx);
 					
 					Feature = getFeatureValues(qid,new_doc);
 					new_doc.featuresValues = Feature;
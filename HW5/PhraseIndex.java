@@ -0,0 +1,469 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * PhraseIndex is a side structure that stores the inverted lists of
+ * frequent two-term phrases, i.e., of #NEAR/1 (a b).  Evaluating a
+ * #NEAR/1 merges the locations of both terms in every document that
+ * contains them; reading a stored list is much cheaper.
+ * QryEval.optimizeQuery replaces a #NEAR/1 of two terms whose phrase
+ * is stored with a {@link QryIopPhrase}, so queries don't change.
+ * <p>
+ * The index is built offline from the Lucene index:
+ * </p>
+ * <pre>
+ *    java PhraseIndex indexPath [minCtf [queryFile]]
+ * </pre>
+ * <p>
+ * Without a query file, the candidates are the pairs of adjacent terms
+ * in the term vectors of every field that has lengths (fields without
+ * term vectors have no candidates).  With a query file (qid:query
+ * lines, as in QryEval), the candidates are the #NEAR/1 operators of
+ * two terms in its queries.  Either way, a phrase is stored if it
+ * occurs at least minCtf times.  Its list is computed by evaluating
+ * #NEAR/1 itself, so it is exactly what the operator would produce.
+ * The file is written to the index directory; {@link Idx} loads it if
+ * it exists and was built from the same version of the index.
+ * </p><p>
+ * File format (big-endian):  a header (magic number, maxDoc, index
+ * version, number of phrases, directory size), a directory of (field,
+ * term a, term b, df, ctf, data offset), and then for each phrase its
+ * docids, tfs and locations.  The data is memory-mapped, so it must
+ * be smaller than 2GB.
+ * </p>
+ */
+public class PhraseIndex {
+
+  /**
+   * The name of the phrase file in the index directory.
+   */
+  public static final String FILE_NAME = "phrases.bin";
+
+  /**
+   * The default number of occurrences that a phrase needs to be stored.
+   */
+  public static final int DEFAULT_MIN_CTF = 1000;
+
+  private static final int MAGIC = 0x50485231;		// "PHR1"
+
+  private static final int HEADER_BYTES = 24;
+
+  private static final String USAGE =
+    "Usage:  java PhraseIndex indexPath [minCtf [queryFile]]\n\n";
+
+  /**
+   * (data offset, df, ctf) of each phrase, keyed by field, a and b.
+   */
+  private Map<String, long[]> phrases = new HashMap<String, long[]>();
+  private ByteBuffer data;
+
+  private static String key(String field, String a, String b) {
+    return field + '\t' + a + '\t' + b;
+  }
+
+  /**
+   * Load the phrase index of an index.
+   *
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param indexPath The directory that contains the index.
+   * @return The phrase index, or null if there isn't one or it was
+   *   built from a different version of the index.
+   * @throws IOException Error reading the file.
+   */
+  public static PhraseIndex open(IndexReader reader, String indexPath)
+    throws IOException {
+
+    File file = new File(indexPath, FILE_NAME);
+
+    if (! file.canRead()) {
+      return null;
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      if ((raf.length() < HEADER_BYTES) ||
+          (raf.readInt() != MAGIC) ||
+          (raf.readInt() != reader.maxDoc()) ||
+          (raf.readLong() != version(reader))) {
+        return null;
+      }
+
+      int numPhrases = raf.readInt();
+      int directoryBytes = raf.readInt();
+      byte[] directoryData = new byte[directoryBytes];
+      raf.readFully(directoryData);
+
+      DataInputStream directory =
+        new DataInputStream(new ByteArrayInputStream(directoryData));
+      PhraseIndex index = new PhraseIndex();
+
+      for (int i = 0; i < numPhrases; i++) {
+        String field = directory.readUTF();
+        String a = directory.readUTF();
+        String b = directory.readUTF();
+        long df = directory.readInt();
+        long ctf = directory.readInt();
+        long offset = directory.readLong();
+        index.phrases.put(key(field, a, b), new long[] { offset, df, ctf });
+      }
+
+      long dataStart = HEADER_BYTES + directoryBytes;
+      FileChannel channel = raf.getChannel();
+
+      index.data = channel.map(FileChannel.MapMode.READ_ONLY, dataStart,
+                               channel.size() - dataStart);
+      index.data.order(ByteOrder.BIG_ENDIAN);
+      return index;
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static long version(IndexReader reader) {
+    return (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion() : -1;
+  }
+
+  /**
+   * @param field The field that the phrase occurs in.
+   * @param a The processed (stemmed, lower-cased, etc) first term.
+   * @param b The processed second term.
+   * @return True if the phrase's inverted list is stored.
+   */
+  public boolean contains(String field, String a, String b) {
+    return this.phrases.containsKey(key(field, a, b));
+  }
+
+  /**
+   * Read the inverted list of a phrase.  A location is the location
+   * of the second term, as in #NEAR/1.
+   *
+   * @param field The field that the phrase occurs in.
+   * @param a The processed (stemmed, lower-cased, etc) first term.
+   * @param b The processed second term.
+   * @return The inverted list, or null if the phrase isn't stored.
+   */
+  public InvList getInvList(String field, String a, String b) {
+
+    long[] phrase = this.phrases.get(key(field, a, b));
+
+    if (phrase == null) {
+      return null;
+    }
+
+    int df = (int) phrase[1];
+    int docidsAt = (int) phrase[0];
+    int tfsAt = docidsAt + 4 * df;
+    int positionsAt = tfsAt + 4 * df;
+    int[] positions = new int[16];
+    InvList list = new InvList(field);
+
+    for (int i = 0; i < df; i++) {
+      int tf = this.data.getInt(tfsAt + 4 * i);
+
+      if (tf > positions.length) {
+        positions = new int[Math.max(tf, 2 * positions.length)];
+      }
+
+      for (int j = 0; j < tf; j++) {
+        positions[j] = this.data.getInt(positionsAt);
+        positionsAt += 4;
+      }
+
+      list.appendPosting(this.data.getInt(docidsAt + 4 * i), positions, tf);
+    }
+
+    list.buildSkipTable();
+    return list;
+  }
+
+  /**
+   * Build the phrase index of the index that {@link Idx} has open.
+   *
+   * @param file The file to write.
+   * @param minCtf The number of occurrences that a phrase needs to be
+   *   stored.
+   * @param candidates The candidate phrases:  (field, a, b) triples.
+   * @throws IOException Error accessing the index or writing the file.
+   */
+  public static void build(File file, int minCtf,
+                           Collection<String[]> candidates)
+    throws IOException {
+
+    ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+    DataOutputStream directory = new DataOutputStream(directoryBytes);
+    File dataFile = new File(file.getPath() + ".data.tmp");
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(dataFile)));
+    long offset = 0;
+    int numPhrases = 0;
+
+    try {
+      for (String[] candidate : candidates) {
+
+        //  Evaluate #NEAR/1 (a b) exhaustively.
+
+        QryIopNear near = new QryIopNear();
+        near.setDisplayName("#NEAR/1");
+        near.nearDis = 1;
+        near.appendArg(new QryIopTerm(candidate[1], candidate[0]));
+        near.appendArg(new QryIopTerm(candidate[2], candidate[0]));
+        near.initialize(null);
+
+        if (near.getCtf() < minCtf) {
+          continue;
+        }
+
+        InvList list = near.invertedList;
+
+        directory.writeUTF(candidate[0]);
+        directory.writeUTF(candidate[1]);
+        directory.writeUTF(candidate[2]);
+        directory.writeInt(list.df);
+        directory.writeInt(list.ctf);
+        directory.writeLong(offset);
+        numPhrases++;
+
+        for (int i = 0; i < list.df; i++) {
+          data.writeInt(list.getDocid(i));
+        }
+
+        for (int i = 0; i < list.df; i++) {
+          data.writeInt(list.getTf(i));
+        }
+
+        for (int i = 0; i < list.df; i++) {
+          for (int position : list.getPositions(i)) {
+            data.writeInt(position);
+          }
+        }
+
+        offset += 4L * (2 * list.df + list.ctf);
+      }
+    } finally {
+      data.close();
+    }
+
+    directory.flush();
+
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(tmp)));
+    InputStream in = new BufferedInputStream(new FileInputStream(dataFile));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(Idx.INDEXREADER.maxDoc());
+      out.writeLong(version(Idx.INDEXREADER));
+      out.writeInt(numPhrases);
+      out.writeInt(directoryBytes.size());
+      directoryBytes.writeTo(out);
+
+      byte[] buffer = new byte[1 << 16];
+      int n;
+
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+      out.close();
+      dataFile.delete();
+    }
+
+    if (! tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Unable to write " + file);
+    }
+
+    System.out.println(numPhrases + " phrases stored in " + file);
+  }
+
+  /**
+   * Find the pairs of distinct adjacent terms that occur at least
+   * minCtf times in the term vectors of the index.
+   *
+   * @param minCtf The number of occurrences that a pair needs.
+   * @return (field, a, b) triples.
+   * @throws IOException Error accessing the index.
+   */
+  public static Collection<String[]> corpusCandidates(int minCtf)
+    throws IOException {
+
+    IndexReader reader = Idx.INDEXREADER;
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    Fields fields = MultiFields.getFields(reader);
+    List<String[]> candidates = new ArrayList<String[]>();
+
+    for (String field : fields) {
+
+      try {
+        Idx.getFieldLengths(field);
+      } catch (IllegalArgumentException ex) {
+        continue;		// Fields without lengths (e.g., externalId).
+      }
+
+      Terms terms = fields.terms(field);
+
+      if (terms == null) {
+        continue;
+      }
+
+      //  A pair can't be more frequent than either of its terms.
+
+      Set<String> frequent = new HashSet<String>();
+      TermsEnum termsEnum = terms.iterator(null);
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next()) != null) {
+        if (termsEnum.totalTermFreq() >= minCtf) {
+          frequent.add(termBytes.utf8ToString());
+        }
+      }
+
+      Map<String, int[]> counts = new HashMap<String, int[]>();
+
+      for (int docid = 0; docid < reader.maxDoc(); docid++) {
+
+        if ((liveDocs != null) && ! liveDocs.get(docid)) {
+          continue;
+        }
+
+        TermVector vector = new TermVector(docid, field);
+        int previous = 0;
+
+        for (int p = 0; p < vector.positionsLength(); p++) {
+          int stem = vector.stemAt(p);
+
+          if ((previous > 0) && (stem > 0) && (stem != previous) &&
+              frequent.contains(vector.stemString(previous)) &&
+              frequent.contains(vector.stemString(stem))) {
+
+            String pair = vector.stemString(previous) + '\t' + vector.stemString(stem);
+            int[] count = counts.get(pair);
+
+            if (count == null) {
+              counts.put(pair, new int[] { 1 });
+            } else {
+              count[0]++;
+            }
+          }
+
+          previous = stem;
+        }
+      }
+
+      for (Map.Entry<String, int[]> e : new TreeMap<String, int[]>(counts).entrySet()) {
+        if (e.getValue()[0] >= minCtf) {
+          String[] pair = e.getKey().split("\t");
+          candidates.add(new String[] { field, pair[0], pair[1] });
+        }
+      }
+    }
+
+    return candidates;
+  }
+
+  /**
+   * Find the #NEAR/1 operators of two distinct terms in a query file.
+   *
+   * @param queryFile A file of qid:query lines.
+   * @return (field, a, b) triples, without duplicates.
+   * @throws IOException Error reading the file or parsing a query.
+   */
+  public static Collection<String[]> queryLogCandidates(String queryFile)
+    throws IOException {
+
+    Map<String, String[]> candidates = new TreeMap<String, String[]>();
+    BufferedReader input = new BufferedReader(new FileReader(queryFile));
+    RetrievalModel model = new RetrievalModelUnrankedBoolean();
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        int d = line.indexOf(':');
+
+        if (d < 0) {
+          continue;
+        }
+
+        Qry q = QryEval.parseQuery(line.substring(d + 1), model);
+
+        if (q != null) {
+          findNearPairs(q, candidates);
+        }
+      }
+    } finally {
+      input.close();
+    }
+
+    return candidates.values();
+  }
+
+  private static void findNearPairs(Qry q, Map<String, String[]> candidates) {
+
+    if ((q instanceof QryIopNear) && (((QryIop) q).nearDis == 1) &&
+        (q.args.size() == 2) &&
+        (q.args.get(0) instanceof QryIopTerm) &&
+        (q.args.get(1) instanceof QryIopTerm)) {
+
+      QryIopTerm a = (QryIopTerm) q.args.get(0);
+      QryIopTerm b = (QryIopTerm) q.args.get(1);
+
+      if (a.getField().equals(b.getField()) &&
+          ! a.getTerm().equals(b.getTerm())) {
+        String[] phrase = { a.getField(), a.getTerm(), b.getTerm() };
+        candidates.put(key(phrase[0], phrase[1], phrase[2]), phrase);
+      }
+    }
+
+    for (Qry q_i : q.args) {
+      findNearPairs(q_i, candidates);
+    }
+  }
+
+  /**
+   * Build the phrase index of an index.
+   *
+   * @param args indexPath [minCtf [queryFile]]
+   * @throws IOException Error accessing the index or writing the file.
+   */
+  public static void main(String[] args) throws IOException {
+
+    if ((args.length < 1) || (args.length > 3)) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    int minCtf = (args.length > 1) ?
+      Integer.parseInt(args[1]) : DEFAULT_MIN_CTF;
+
+    if (minCtf < 1) {
+      throw new IllegalArgumentException("minCtf must be positive.");
+    }
+
+    Idx.initialize(args[0]);
+
+    Collection<String[]> candidates = (args.length > 2) ?
+      queryLogCandidates(args[2]) : corpusCandidates(minCtf);
+
+    build(new File(args[0], FILE_NAME), minCtf, candidates);
+  }
+}
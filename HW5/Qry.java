@@ -57,8 +57,11 @@ import java.util.*;
  *  materialized when the query operator is initialized.  It is not
  *  possible to produce them in a document-at-a-time mode because
  *  the df and ctf statistics are not known until the inverted list
- *  is fully constructed.  QryIop operators provide a document-at-a-time
- *  interface to the inverted lists via docIterators.
+ *  is fully constructed.  (Proximity operators are the exception:  they
+ *  evaluate documents lazily, and materialize their lists only if a
+ *  statistic is requested; see QryIopProximity.)  QryIop operators
+ *  provide a document-at-a-time interface to the inverted lists via
+ *  docIterators.
  *  </p><p>
  *  The data structure that stores query arguments (args) is accessible
  *  by subclasses.  If it is accessed via a standard Java iterator, the
@@ -254,10 +257,49 @@ public abstract class Qry {
    */
   public abstract boolean docIteratorHasMatch (RetrievalModel r);
 
+  /**
+   *  The approximation phase of two-phase matching.  Indicates
+   *  whether the query has a document that it may match, and points
+   *  the docIterator at it, so that docIteratorGetMatch returns it.
+   *  The candidate must be verified with docIteratorMatches.  Query
+   *  operators whose matches are expensive to confirm (e.g., #NEAR,
+   *  which must compare locations) override this with a cheaper
+   *  test; by default the approximation is exact.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query may match a document, otherwise false.
+   */
+  public boolean docIteratorHasApproximateMatch (RetrievalModel r) {
+    return this.docIteratorHasMatch (r);
+  }
+
+  /**
+   *  The verification phase of two-phase matching.  Indicates whether
+   *  the candidate that docIteratorHasApproximateMatch found is a
+   *  match.  If it isn't, the caller must advance past it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the candidate matches, otherwise false.
+   */
+  public boolean docIteratorMatches (RetrievalModel r) {
+    return true;
+  }
+
+  /**
+   *  Returns true if the operator's approximation may be inexact, so
+   *  that docIteratorMatches must be called.
+   *  @return True if the operator has two matching phases.
+   */
+  public boolean docIteratorIsTwoPhase () {
+    return false;
+  }
+
   /**
    *  An instantiation of docIteratorHasMatch that is true if the
    *  query has a document that matches all query arguments; some
-   *  subclasses may choose to use this implementation.  
+   *  subclasses may choose to use this implementation.  Matching is
+   *  two-phase:  the arguments' approximations are intersected first,
+   *  and a document is verified only when they all agree on it, so
+   *  expensive arguments aren't verified on documents that cheap
+   *  ones reject.
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
@@ -273,7 +315,7 @@ public abstract class Qry {
       
       Qry q_0 = this.args.get (0);
 
-      if (! q_0.docIteratorHasMatch (r)) {
+      if (! q_0.docIteratorHasApproximateMatch (r)) {
     	  	return false;
       }
 
@@ -289,7 +331,7 @@ public abstract class Qry {
 
     	  	q_i.docIteratorAdvanceTo (docid_0);
 
-    	  	if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
+    	  	if (! q_i.docIteratorHasApproximateMatch (r)) {	// If any argument is exhausted
     	  		return false;				// there are no more matches.
     	  	}
 
@@ -302,6 +344,18 @@ public abstract class Qry {
     	  	}
       	}
 
+      	// Every argument may match docid_0.  Verify it.
+
+      	if (matchFound) {
+      	  for (int i=0; i<this.args.size(); i++) {
+      	    if (! this.args.get(i).docIteratorMatches (r)) {
+      	      q_0.docIteratorAdvancePast (docid_0);
+      	      matchFound = false;
+      	      break;
+      	    }
+      	  }
+      	}
+
       	if (matchFound) {
       		docIteratorSetMatchCache (docid_0);
       	}
@@ -330,6 +384,26 @@ public abstract class Qry {
     }
   }
 
+  /**
+   *  An instantiation of docIteratorHasApproximateMatch that passes
+   *  through the approximation of the first query argument; operators
+   *  that use docIteratorHasMatchFirst may choose to use it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query may match a document, otherwise false.
+   */
+  protected boolean docIteratorHasApproximateMatchFirst (RetrievalModel r) {
+
+    Qry q_0 = this.args.get(0);
+
+    if (q_0.docIteratorHasApproximateMatch (r)) {
+      int docid = q_0.docIteratorGetMatch ();
+      this.docIteratorSetMatchCache (docid);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
   /**
    *  An instantiation of docIteratorHasMatch that is true if the
    *  query has a document that matches at least one query argument;
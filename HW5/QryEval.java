@@ -8,6 +8,7 @@ import java.math.BigDecimal;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -63,8 +64,45 @@ public class QryEval {
     new EnglishAnalyzerConfigurable(Version.LUCENE_43);
   private static final String[] TEXT_FIELDS =
     { "body", "title", "url", "inlink" };
-  private static String CurrQueryID;
-  private static String exact_original_query;
+
+  /**
+   *  If true, terms that are scored directly stream their inverted
+   *  lists from Lucene instead of materializing them.  See optimizeQuery.
+   */
+  private static boolean streamingPostings = false;
+
+  /**
+   *  The number of documents that processQuery returns for each query
+   *  in the output.  Internal retrievals (e.g., the initial ranking of
+   *  relevance feedback) ask for the depth that they need.
+   */
+  private static int resultLength = 100;
+
+  /**
+   *  If true (the default), queries are compiled into scorers that
+   *  are specialized for the retrieval model.  See CompiledQuery.
+   */
+  private static boolean compileQueries = true;
+
+  /**
+   *  If true (the default), repeated QryIop subtrees are evaluated once
+   *  per query.  See shareSubexpressions.
+   */
+  private static boolean shareSubexpressions = true;
+
+  /**
+   *  The number of docid ranges that each query is split into.  The
+   *  ranges are evaluated in parallel by partitionPool.  See
+   *  evaluatePartitions.
+   */
+  private static int queryPartitions = 1;
+  private static ForkJoinPool partitionPool = null;
+
+  /**
+   *  If true, every query is profiled operator by operator, and the
+   *  profiles are printed with the results.  See QryProfile.
+   */
+  private static boolean profileQueries = false;
 
   //  --------------- Methods ---------------------------------------
 
@@ -95,13 +133,54 @@ public class QryEval {
     //  Configure query lexical processing to match index lexical
     //  processing.  Initialize the index and retrieval model.
 
-    ANALYZER.setLowercase(true);
-    ANALYZER.setStopwordRemoval(true);
-    ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
-
+    initializeAnalyzer ();
     Idx.initialize (parameters.get ("indexPath"));
     RetrievalModel model = initializeRetrievalModel (parameters);
 
+    streamingPostings = parameters.containsKey ("streamingPostings") &&
+      parameters.get ("streamingPostings").equals ("true");
+
+    compileQueries = ! (parameters.containsKey ("compileQueries") &&
+                        parameters.get ("compileQueries").equals ("false"));
+
+    shareSubexpressions = ! (parameters.containsKey ("shareSubexpressions") &&
+                             parameters.get ("shareSubexpressions").equals ("false"));
+
+    profileQueries = parameters.containsKey ("profileQueries") &&
+      parameters.get ("profileQueries").equals ("true");
+
+    if (parameters.containsKey ("queryPartitions")) {
+      queryPartitions = Integer.parseInt (parameters.get ("queryPartitions"));
+
+      if (queryPartitions < 1) {
+        throw new IllegalArgumentException ("queryPartitions must be positive.");
+      }
+
+      if (queryPartitions > 1) {
+        partitionPool = new ForkJoinPool (queryPartitions);
+      }
+    }
+
+    if (parameters.containsKey ("trecEvalOutputLength")) {
+      resultLength = Integer.parseInt (parameters.get ("trecEvalOutputLength"));
+    }
+
+    if (parameters.containsKey ("dynamicPruning")) {
+      DynamicPruning.setStrategy (parameters.get ("dynamicPruning"));
+    }
+
+    if (parameters.containsKey ("postingsCacheBytes")) {
+      InvListCache.setMaxBytes (Long.parseLong (parameters.get ("postingsCacheBytes")));
+    }
+
+    if (parameters.containsKey ("resultCacheBytes")) {
+      ResultCache.setMaxBytes (Long.parseLong (parameters.get ("resultCacheBytes")));
+
+      if (parameters.containsKey ("resultCacheFile")) {
+        ResultCache.load (new File (parameters.get ("resultCacheFile")));
+      }
+    }
+
     // If the model is letor, then redirect to this module
     if(parameters.get("retrievalAlgorithm").equals("letor")){
 
@@ -115,9 +194,39 @@ public class QryEval {
 
     //  Clean up.
     timer.stop ();
+
+    if (InvListCache.isEnabled ()) {
+      InvListCache.printStats ();
+    }
+    if (ResultCache.isEnabled ()) {
+      ResultCache.printStats ();
+
+      if (parameters.containsKey ("resultCacheFile")) {
+        ResultCache.save (new File (parameters.get ("resultCacheFile")));
+      }
+    }
+    if (DynamicPruning.isEnabled ()) {
+      DynamicPruning.printStats ();
+    }
+
+    QueryMetrics.printSummary ();
+
+    if (parameters.containsKey ("queryMetricsFile")) {
+      QueryMetrics.write (new File (parameters.get ("queryMetricsFile")));
+    }
     System.out.println ("Time:  " + timer);
   }
 
+  /**
+   * Configure query lexical processing to match index lexical
+   * processing.  This must be called before queries are parsed.
+   */
+  static void initializeAnalyzer () {
+    ANALYZER.setLowercase(true);
+    ANALYZER.setStopwordRemoval(true);
+    ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+  }
+
   /**
    * Allocate the retrieval model and initialize it using parameters
    * from the parameter file.
@@ -176,6 +285,7 @@ public class QryEval {
    * query parsing, for example '#NEAR/1 (of the)' which turns into 
    * '#NEAR/1 ()' after stopwords are removed; and unnecessary nodes
    * or subtrees, such as #AND (#AND (a)), which can be replaced by 'a'.
+   * It also selects how the inverted lists of terms are accessed.
    */
   static Qry optimizeQuery(Qry q) {
 
@@ -203,6 +313,39 @@ public class QryEval {
       }
     }
 
+    //  A term that is scored directly (i.e., not inside #SYN, #NEAR
+    //  or #WINDOW) only needs document ids and term frequencies, so
+    //  its locations are not read.  It may also be streamed.  This is
+    //  checked after the argument is optimized, because an argument
+    //  such as #SYN (a) or #NEAR/1 (of apple) may become a term.
+
+    if ((q instanceof QrySopScore) && (q.args.size () == 1) &&
+        (q.args.get (0) instanceof QryIopTerm)) {
+      QryIopTerm t = (QryIopTerm) q.args.get (0);
+      t.setFrequencyOnly (true);
+      t.setStreaming (streamingPostings);
+      return q;
+    }
+
+    //  #NEAR/1 of two terms is read from the phrase index, if the
+    //  phrase is stored there.
+
+    if ((q instanceof QryIopNear) && (((QryIop) q).nearDis == 1) &&
+        (q.args.size () == 2) &&
+        (q.args.get (0) instanceof QryIopTerm) &&
+        (q.args.get (1) instanceof QryIopTerm)) {
+      QryIopTerm a = (QryIopTerm) q.args.get (0);
+      QryIopTerm b = (QryIopTerm) q.args.get (1);
+
+      if (a.getField ().equals (b.getField ()) &&
+          Idx.hasPhrase (a.getField (), a.getTerm (), b.getTerm ())) {
+        QryIopPhrase phrase =
+          new QryIopPhrase (a.getTerm (), b.getTerm (), a.getField ());
+        phrase.setDisplayName (q.getDisplayName ());
+        return phrase;
+      }
+    }
+
     //  If the operator now has no arguments, it is deleted.
 
     if (q.args.size () == 0) {
@@ -221,6 +364,101 @@ public class QryEval {
 
   }
 
+  /**
+   *  Replace the QryIop subtrees that occur more than once in a query
+   *  with QryIopShared operators, so that each distinct inverted list
+   *  is produced once, e.g., the original query terms that are also
+   *  in the expansion part of a relevance feedback query, or a term
+   *  that is repeated inside #SYN.  A repeated subtree is only counted
+   *  once, so the arguments of a repeated #NEAR are counted only for
+   *  the copy that is evaluated.
+   *  @param q An optimized query.
+   *  @return The query.
+   */
+  static Qry shareSubexpressions (Qry q) {
+
+    if (q == null) {
+      return null;
+    }
+
+    Map<String, Integer> counts = new HashMap<String, Integer> ();
+    countSubtrees (q, counts);
+    shareSubtrees (q, counts, new HashMap<String, QryIopShared.Source> ());
+    return q;
+  }
+
+  private static void countSubtrees (Qry q, Map<String, Integer> counts) {
+
+    for (Qry q_i : q.args) {
+      if (q_i instanceof QryIop) {
+        String key = subtreeKey (q_i);
+        Integer n = counts.get (key);
+
+        counts.put (key, (n == null) ? 1 : n + 1);
+
+        if (n != null) {
+          continue;			// Its arguments were counted already.
+        }
+      }
+
+      countSubtrees (q_i, counts);
+    }
+  }
+
+  private static void shareSubtrees (Qry q, Map<String, Integer> counts,
+                                     Map<String, QryIopShared.Source> sources) {
+
+    for (int i = 0; i < q.args.size (); i++) {
+      Qry q_i = q.args.get (i);
+
+      if ((q_i instanceof QryIop) && (counts.get (subtreeKey (q_i)) > 1)) {
+        String key = subtreeKey (q_i);
+        QryIopShared.Source source = sources.get (key);
+
+        if (source == null) {
+          source = new QryIopShared.Source ((QryIop) q_i);
+          sources.put (key, source);
+          shareSubtrees (q_i, counts, sources);
+        }
+
+        QryIopShared shared = new QryIopShared (source);
+
+        //  The shared list has locations if any occurrence needs them.
+
+        if ((q_i instanceof QryIopTerm) &&
+            ! ((QryIopTerm) q_i).isFrequencyOnly ()) {
+          ((QryIopTerm) shared.getSource ()).setFrequencyOnly (false);
+        }
+
+        q.args.set (i, shared);
+      } else {
+        shareSubtrees (q_i, counts, sources);
+      }
+    }
+  }
+
+  /**
+   *  A key that is the same for identical QryIop subtrees.  The display
+   *  name of #NEAR/n and #WINDOW/n doesn't include n, so the distances
+   *  are part of the key.
+   */
+  private static String subtreeKey (Qry q) {
+
+    if (q.args.size () == 0) {
+      return q.getClass ().getName () + ':' + q;
+    }
+
+    QryIop q_iop = (QryIop) q;
+    StringBuilder key = new StringBuilder (q.getClass ().getName ());
+    key.append ('/').append (q_iop.nearDis).append ('/').append (q_iop.WindowDis).append ('(');
+
+    for (Qry q_i : q.args) {
+      key.append (subtreeKey (q_i)).append (' ');
+    }
+
+    return key.append (')').toString ();
+  }
+
   /**
    * Return a query tree that corresponds to the query.
    * 
@@ -499,7 +737,7 @@ public class QryEval {
   }
 
   /**
-   * Process one query.
+   * Process one query, and return the top resultLength documents.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
    * @return Search results
@@ -507,110 +745,325 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery (qString, model, resultLength);
+  }
+
+  /**
+   * Process one query.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+    throws IOException {
 
+    long start = System.nanoTime ();
     Qry q = parseQuery(qString, model);
     q = optimizeQuery (q);
+    QueryMetrics.addTime (QueryMetrics.PARSE, start);
+
+    //  Repeated queries are answered from the result cache.  The key
+    //  is computed before subexpressions are shared.
+
+    String cacheKey = null;
+
+    if ((q != null) && ResultCache.isEnabled ()) {
+      cacheKey = ResultCache.getKey (q, model, k);
+
+      ScoreList cached = ResultCache.get (cacheKey);
+
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    if (shareSubexpressions) {
+      start = System.nanoTime ();
+      q = shareSubexpressions (q);
+      QueryMetrics.addTime (QueryMetrics.PARSE, start);
+    }
 
     // Show the query that is evaluated
     // System.out.println("    --> " + q);
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
-      
-      if (q.args.size () > 0) {		// Ignore empty queries
+      //  Only the best k documents are kept, so broad
+      //  queries don't build and sort a list of every match.
 
-        q.initialize (model);
-        
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          r.add (docid, score);
-          q.docIteratorAdvancePast (docid);
-        }
+      ScoreList results;
+
+      if (q.args.size () == 0) {		// Ignore empty queries
+        results = new ScoreList ();
+      } else if (profileQueries) {
+        q = QryProfile.wrap (q);
+
+        TopKCollector topK = new TopKCollector (k);
+        evaluateRange (q, model, 0, Integer.MAX_VALUE, topK);
+        QryProfile.record (q);
+        results = topK.getScoreList ();
+      } else if (queryPartitions > 1) {
+        results = evaluatePartitions (q, model, k);
+      } else {
+        TopKCollector topK = new TopKCollector (k);
+        evaluateRange (q, model, 0, Integer.MAX_VALUE, topK);
+        results = topK.getScoreList ();
       }
-      
-      r.sort();
-      
-      int count=0;
-      ScoreList ret = new ScoreList ();
-      while(count<Math.min(100, r.size())){
-    	  ret.add(r.getDocid(count), r.getDocidScore(count));
-    	  count++;
+
+      if (cacheKey != null) {
+        ResultCache.put (cacheKey, results);
       }
-      
-      return ret;
+
+      return results;
       
     } else
       return null;
   }
 
   /**
-   * Process the query file.
+   * Evaluate the documents of a docid range, and collect the best ones.
+   * @param q An optimized query that hasn't been initialized.
+   * @param model The retrieval model.
+   * @param start The first docid of the range.
+   * @param end The docid after the range.
+   * @param topK Collects the results.
+   * @throws IOException Error accessing the index
+   */
+  private static void evaluateRange(Qry q, RetrievalModel model, int start,
+                                    int end, TopKCollector topK)
+    throws IOException {
+
+    long time = System.nanoTime ();
+
+    q.initialize (model);
+
+    if (start > 0) {
+      q.docIteratorAdvanceTo (start);
+    }
+
+    QueryMetrics.addTime (QueryMetrics.INITIALIZE, time);
+    time = System.nanoTime ();
+
+    CompiledQuery compiled = null;
+    long postingsScored = -1;		// Unknown unless pruned
+
+    if (DynamicPruning.canPrune (q, model)) {
+      postingsScored = DynamicPruning.evaluate (q, model, topK, end);
+    } else if (compileQueries &&
+               ((compiled = CompiledQuery.compile (q, model)) != null)) {
+      compiled.evaluate (topK, end);
+    } else {
+      while (q.docIteratorHasMatch (model)) {
+        int docid = q.docIteratorGetMatch ();
+
+        if (docid >= end) {
+          break;
+        }
+
+        double score = ((QrySop) q).getScore (model);
+        topK.collect (docid, score);
+        q.docIteratorAdvancePast (docid);
+      }
+    }
+
+    //  A pruned evaluation reports the postings that it scored.  An
+    //  exhaustive one reports the sizes of its lists; the docid ranges
+    //  of a query share their lists, so only the first range counts
+    //  them.
+
+    QueryMetrics.addTime (QueryMetrics.EVALUATE, time);
+
+    if (postingsScored >= 0) {
+      QueryMetrics.addPrunedEvaluation (postingsScored, topK.getOffered ());
+    } else {
+      QueryMetrics.addEvaluation ((start == 0) ? q : null, topK.getOffered ());
+    }
+  }
+
+  /**
+   * Split the docid space into queryPartitions ranges, evaluate them in
+   * parallel, and merge their top documents.  A query tree holds its
+   * iterators' state, so each range gets its own copy of the tree.
+   * The QryIop leaves are replaced with QryIopShared operators first,
+   * and the copies share the leaves' sources, so each inverted list is
+   * built once, and each range iterates over it with its own
+   * iterators.  The ranges' collectors share a score threshold, so a
+   * range that finds good documents early tightens the pruning of the
+   * others.  The merged ranking is the same as the ranking of the
+   * whole query.
+   * @param q The optimized query, which the first range uses.
+   * @param model The retrieval model.
+   * @param k The number of documents to return.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList evaluatePartitions(Qry q,
+                                              final RetrievalModel model,
+                                              final int k)
+    throws IOException {
+
+    long maxDoc = Idx.INDEXREADER.maxDoc ();
+    final QueryMetrics.Query metrics = QueryMetrics.current ();
+    final TopKCollector.Threshold threshold = new TopKCollector.Threshold ();
+    List<Callable<ScoreList>> ranges = new ArrayList<Callable<ScoreList>> ();
+
+    //  The copies are made before any range is initialized, so that the
+    //  sources know how many occurrences to wait for before they
+    //  release their lists.
+
+    shareLeaves (q);
+
+    for (int i = 0; i < queryPartitions; i++) {
+      final Qry tree = (i == 0) ? q : copyTree (q);
+      final int start = (int) (maxDoc * i / queryPartitions);
+      final int end = (i + 1 == queryPartitions) ?
+        Integer.MAX_VALUE : (int) (maxDoc * (i + 1) / queryPartitions);
+
+      ranges.add (new Callable<ScoreList> () {
+        public ScoreList call () throws IOException {
+          QueryMetrics.attach (metrics);
+
+          try {
+            TopKCollector topK = new TopKCollector (k, threshold);
+            evaluateRange (tree, model, start, end, topK);
+            return topK.getScoreList ();
+          } finally {
+            QueryMetrics.detach ();
+          }
+        }
+      });
+    }
+
+    //  Every document of the top k is in the top k of its range, so
+    //  merging the ranges' lists is exact.
+
+    TopKCollector topK = new TopKCollector (k);
+
+    for (Future<ScoreList> range : partitionPool.invokeAll (ranges)) {
+      ScoreList partial = waitFor (range);
+
+      for (int j = 0; j < partial.size (); j++) {
+        topK.collect (partial.getDocid (j), partial.getDocidScore (j));
+      }
+    }
+
+    return topK.getScoreList ();
+  }
+
+  /**
+   * Replace the QryIop leaves of a query's score operators with
+   * QryIopShared operators.  A leaf that is shared already keeps its
+   * source.
+   * @param q An optimized query.
+   */
+  private static void shareLeaves (Qry q) {
+
+    for (int i = 0; i < q.args.size (); i++) {
+      Qry q_i = q.args.get (i);
+
+      if (q_i instanceof QryIopShared) {
+        continue;
+      } else if (q_i instanceof QryIop) {
+        q.args.set (i, new QryIopShared (new QryIopShared.Source ((QryIop) q_i)));
+      } else {
+        shareLeaves (q_i);
+      }
+    }
+  }
+
+  /**
+   * Copy a query whose leaves are shared (see shareLeaves).  The score
+   * operators are copied, and each leaf of the copy is a new
+   * occurrence of the same source.
+   * @param q An optimized query with shared leaves.
+   * @return The copy, which hasn't been initialized.
+   */
+  private static Qry copyTree (Qry q) {
+
+    Qry copy = ((QrySop) q).copyOperator ();
+
+    for (Qry q_i : q.args) {
+      if (q_i instanceof QryIopShared) {
+        copy.args.add (new QryIopShared (((QryIopShared) q_i).getSharedSource ()));
+      } else {
+        copy.args.add (copyTree (q_i));
+      }
+    }
+
+    return copy;
+  }
+
+  /**
+   * The output of one query:  its results and, if relevance feedback
+   * expanded it, the line for the expansion query file.
+   */
+  private static class QueryOutput {
+    private String qid;
+    private ScoreList results = null;
+    private String expansion = null;
+    private QueryMetrics.Query metrics;
+    private List<QryProfile> profiles = null;
+  }
+
+  /**
+   * Process the query file.  With the threads parameter, queries are
+   * evaluated in parallel by that many threads.  Output is written
+   * in query file order either way, so the files are the same.
    * @param queryFilePath
    * @param model
    * @throws IOException Error accessing the Lucene index.
    */
-  static void processQueryFile(Map<String, String> parameters,
-                               RetrievalModel model)
+  static void processQueryFile(final Map<String, String> parameters,
+                               final RetrievalModel model)
       throws IOException {
 
 	String queryFilePath = parameters.get("queryFilePath");
     BufferedReader input = null;
-    String[] originalQueryTokens;
-    String originalQuery = " ";
+    int threads = parameters.containsKey ("threads") ?
+      Integer.parseInt (parameters.get ("threads")) : 1;
+
+    if (threads < 1) {
+      throw new IllegalArgumentException ("threads must be positive.");
+    }
 
     try {
       String qLine = null;
 
       input = new BufferedReader(new FileReader(queryFilePath));
 
-      //  Each pass of the loop processes one query.
+      if (threads == 1) {
 
-      while ((qLine = input.readLine()) != null) {
-        int d = qLine.indexOf(':');
+        //  Each pass of the loop processes one query.
 
-        if (d < 0) {
-          throw new IllegalArgumentException
-            ("Syntax error:  Missing ':' in query line.");
+        while ((qLine = input.readLine()) != null) {
+          writeQueryOutput(parameters, processQueryLine(qLine, parameters, model));
         }
+      } else {
 
-        printMemoryUsage(true);
+        //  Queries are evaluated by a pool of threads.  Their outputs
+        //  are written in order as they become available.
 
-        String qid = qLine.substring(0, d);
-        CurrQueryID = qid;
-        String query = qLine.substring(d + 1);
-        exact_original_query = query;
-        String extended_query;
+        ExecutorService pool = Executors.newFixedThreadPool (threads);
+        List<Future<QueryOutput>> outputs = new ArrayList<Future<QueryOutput>> ();
 
-        // System.out.println("Query " + qLine);
+        try {
+          while ((qLine = input.readLine()) != null) {
+            final String line = qLine;
 
-        ScoreList r = null;
+            outputs.add (pool.submit (new Callable<QueryOutput> () {
+              public QueryOutput call () throws IOException {
+                return processQueryLine (line, parameters, model);
+              }
+            }));
+          }
 
-        if((model instanceof RetrievalModelIndri) && parameters.containsKey("fb")
-        		&& (parameters.get("fb").equals("true"))){
-        	
-        	originalQueryTokens = tokenizeQuery(query);
-        	//convert the tokens into the one string query
-        	originalQuery =" ";
-        	for(int i=0;i<originalQueryTokens.length;i++){
-        		originalQuery = originalQuery.concat(originalQueryTokens[i]);
-        		originalQuery = originalQuery.concat(" ");
-        	}
-        	
-        	extended_query  = expandedQuery(qid,originalQuery,parameters,model);
-        	originalQuery =" ";
-      	    String reformedExpandedQuery;
-     	    reformedExpandedQuery =  " #WAND ( " + extended_query + " )";
-        	r = processQuery(reformedExpandedQuery,model);
-        	
-        }else{
-         r = processQuery(query, model);
-        }
-        
-        if (r != null) {
-          printResults(parameters,qid, r);
-          System.out.println();
+          for (Future<QueryOutput> output : outputs) {
+            writeQueryOutput (parameters, waitFor (output));
+          }
+        } finally {
+          pool.shutdownNow ();
         }
       }
     } catch (IOException ex) {
@@ -620,6 +1073,175 @@ public class QryEval {
     }
   }
 
+  /**
+   * Wait for the output of a query (or of part of one) that another
+   * thread evaluates, and rethrow the exception that it threw, if any.
+   */
+  private static <T> T waitFor (Future<T> output)
+    throws IOException {
+
+    try {
+      return output.get ();
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new IllegalStateException ("Interrupted while evaluating queries.", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause ();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException (cause);
+    }
+  }
+
+  /**
+   * Evaluate one line of the query file.  This is called by several
+   * threads at once in parallel mode, so it only reads shared state.
+   * @param qLine A qid:query line.
+   * @return The query's output.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  static QueryOutput processQueryLine(String qLine, Map<String, String> parameters,
+                                      RetrievalModel model) throws IOException {
+
+    int d = qLine.indexOf(':');
+
+    if (d < 0) {
+      throw new IllegalArgumentException
+        ("Syntax error:  Missing ':' in query line.");
+    }
+
+    QueryOutput output = new QueryOutput();
+    String qid = qLine.substring(0, d);
+    String query = qLine.substring(d + 1);
+
+    output.qid = qid;
+    output.metrics = QueryMetrics.begin(qid);
+
+    try {
+      evaluateQuery(output, query, parameters, model);
+    } finally {
+      output.profiles = QryProfile.takeRecorded();
+      QueryMetrics.detach();
+    }
+
+    return output;
+  }
+
+  /**
+   * Evaluate a query, with relevance feedback if it is enabled, and
+   * store its results and expansion in its output.
+   */
+  private static void evaluateQuery(QueryOutput output, String query,
+                                    Map<String, String> parameters,
+                                    RetrievalModel model) throws IOException {
+
+    String qid = output.qid;
+
+    // System.out.println("Query " + qid + ":" + query);
+
+    if((model instanceof RetrievalModelIndri) && parameters.containsKey("fb")
+    		&& (parameters.get("fb").equals("true"))){
+    	
+    	String[] originalQueryTokens = tokenizeQuery(query);
+    	//convert the tokens into the one string query
+    	String originalQuery =" ";
+    	for(int i=0;i<originalQueryTokens.length;i++){
+    		originalQuery = originalQuery.concat(originalQueryTokens[i]);
+    		originalQuery = originalQuery.concat(" ");
+    	}
+    	
+    	String expansion = expandedQuery(qid,originalQuery,parameters,model);
+    	output.expansion = qid + " : " + expansion;
+
+    	String extended_query = formNewQuery(query,expansion,parameters);
+  	    String reformedExpandedQuery;
+ 	    reformedExpandedQuery =  " #WAND ( " + extended_query + " )";
+    	output.results = processQuery(reformedExpandedQuery,model);
+    	
+    }else{
+      output.results = processQuery(query, model);
+    }
+  }
+
+  /**
+   * Write the output of one query.
+   * @throws IOException Error writing the output files.
+   */
+  private static void writeQueryOutput(Map<String, String> parameters,
+                                       QueryOutput output) throws IOException {
+
+    QueryMetrics.attach(output.metrics);
+    long start = System.nanoTime();
+
+    try {
+      if (output.expansion != null) {
+        printExpansion(parameters, output.expansion);
+      }
+
+      if (output.results != null) {
+        printResults(parameters, output.qid, output.results);
+        System.out.println();
+      }
+
+      if (! output.profiles.isEmpty()) {
+        printProfiles(parameters, output.qid, output.profiles);
+      }
+    } finally {
+      QueryMetrics.addTime(QueryMetrics.OUTPUT, start);
+      QueryMetrics.detach();
+    }
+
+    QueryMetrics.record(output.metrics);
+  }
+
+  /**
+   * Print the profiles of a query as annotated trees.  If the
+   * profileFile parameter is set, also append them to that file as
+   * JSON, one line per query.
+   * @param parameters The parameters.
+   * @param qid The query id.
+   * @param profiles The profiles of the query's evaluations (two with
+   *        relevance feedback).
+   * @throws IOException Error writing the file.
+   */
+  static void printProfiles(Map<String, String> parameters, String qid,
+                            List<QryProfile> profiles) throws IOException {
+
+    StringBuilder json = new StringBuilder();
+
+    json.append("{\"qid\":").append(QryProfile.quote(qid)).append(",\"profiles\":[");
+
+    for (int i = 0; i < profiles.size(); i++) {
+      QryProfile profile = profiles.get(i);
+
+      System.out.println("Profile of query " + qid + ":  " + profile.getQuery());
+      System.out.println(profile);
+
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append(profile.toJson());
+    }
+
+    json.append("]}");
+
+    if (parameters.containsKey("profileFile")) {
+      PrintWriter out = new PrintWriter(new FileWriter(parameters.get("profileFile"), true));
+
+      try {
+        out.println(json);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
   /**
    * Print the query results.
    * 
@@ -648,7 +1270,7 @@ public class QryEval {
 	BufferedWriter bw = new BufferedWriter(fw);
 	
 	for (int i = 0; i < result.size(); i++) {
-		QryResult = queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + (new Integer(i+1)).toString()
+		QryResult = queryName + " Q0 " + result.getExternalDocid(i) + " " + (new Integer(i+1)).toString()
 				+ " " + (new Double(result.getDocidScore(i))).toString() + " run-1 ";
 		//System.out.println(QryResult);
 		bw.write(QryResult);
@@ -680,7 +1302,7 @@ public class QryEval {
 	BufferedWriter bw = new BufferedWriter(fw);
 	
 	for (int i = 0; i < result.size(); i++) {
-		QryResult = queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + (new Integer(i+1)).toString()
+		QryResult = queryName + " Q0 " + result.getExternalDocid(i) + " " + (new Integer(i+1)).toString()
 				+ " " + (new Double(result.getDocidScore(i))).toString() + " run-1 ";
 		System.out.println(QryResult);
 		bw.write(QryResult);
@@ -777,7 +1399,7 @@ public class QryEval {
    * 
    * @param query
    *          String containing query
-   * @return String : Expanded query
+   * @return String : The expansion query, a #Wand of the expansion terms
    * @throws IOException Error accessing the Lucene index.
    */
   static String expandedQuery(String qid,String orignalQuery,Map<String, String> parameters,
@@ -807,7 +1429,7 @@ public class QryEval {
 		  topDocs = extractTopDocs(qid,max_docs,parameters);
 	  }else{ 
 		  try {
-			list = processQuery(orignalQuery,model);
+			list = processQuery(orignalQuery,model,Math.max(resultLength,max_docs));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -816,7 +1438,7 @@ public class QryEval {
 	  
 	  /* Extract the top words from topdocs along with the weights */
 	  topWords = extractTopWords(parameters,topDocs);
-	  expanded_query = formNewQuery(model,topWords,parameters);
+	  expanded_query = formExpansionQuery(topWords);
 	  return expanded_query;
   }
   
@@ -1027,21 +1649,12 @@ public class QryEval {
   }
   
   /* This function will take the most frequent words already retrieved and form the 
-   * new expanded query based on the original query, parameters provided 
+   * expansion query, a #Wand of the words weighted by their scores
    */
-   static String formNewQuery(RetrievalModel model,LinkedHashMap<String,Double>topWords,
-		   Map<String, String> parameters){
+   static String formExpansionQuery(LinkedHashMap<String,Double>topWords){
 	  
-	   //System.out.println("Form new query :");
-	   String expandedQuery = " ",first_part=" ",w_string=" ",fileQry=" ";
-	   double w =  Double.parseDouble(parameters.get("fbOrigWeight"));
-	   
-	   w_string = Double.toString(w);
-	   
-	   first_part = w_string + " #and (" + exact_original_query + " ) ";
+	   String expandedQuery = " ";
 
-	   System.out.println(" first_part = " + first_part);
-	   // Form the 2nd part of the final query i.e. Expanded one
 	   Iterator<Entry<String, Double>> exp_itr = topWords.entrySet().iterator();
 	   
 	   while (exp_itr.hasNext()) {
@@ -1056,32 +1669,43 @@ public class QryEval {
 	       expandedQuery=expandedQuery.concat(" "); 
 	   }
 	   
-	   expandedQuery = " #Wand (" + expandedQuery + " ) ";
-	   fileQry = CurrQueryID + " : "  + expandedQuery;
-	   
-	   System.out.println("Expansion = " + fileQry);
-	   // Write the expanded query to the path provided in the parameter file/map
-	   File file = new File(parameters.get("fbExpansionQueryFile"));
+	   return " #Wand (" + expandedQuery + " ) ";
+  }
 
-	   FileWriter fw = null;
-		try {
-			
-			if (!file.exists()){
-				file.createNewFile();
-			}
-			fw = new FileWriter(file.getAbsoluteFile(),true);
-			BufferedWriter bw = new BufferedWriter(fw);
-			bw.write(fileQry);
-			bw.close();
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+  /* Form the new expanded query from the original query and its expansion
+   * query, weighted by the fbOrigWeight parameter
+   */
+   static String formNewQuery(String originalQuery,String expansion,
+		   Map<String, String> parameters){
+	  
+	   //System.out.println("Form new query :");
+	   String expandedQuery = " ",first_part=" ",w_string=" ";
+	   double w =  Double.parseDouble(parameters.get("fbOrigWeight"));
+	   
+	   w_string = Double.toString(w);
+	   
+	   first_part = w_string + " #and (" + originalQuery + " ) ";
 
 	   w_string = Double.toString(1-w);
-	   expandedQuery =  first_part + " "+ w_string + expandedQuery;
+	   expandedQuery =  first_part + " "+ w_string + expansion;
 
-	   System.out.println("QryExp: Final Exapnded query " + expandedQuery);   
 	   return expandedQuery;
   }
+
+  /* Write an expanded query to the path provided in the parameter file/map
+   */
+   static void printExpansion(Map<String, String> parameters, String fileQry)
+     throws IOException {
+
+	   System.out.println("Expansion = " + fileQry);
+	   File file = new File(parameters.get("fbExpansionQueryFile"));
+
+	   if (!file.exists()){
+		   file.createNewFile();
+	   }
+
+	   BufferedWriter bw = new BufferedWriter(new FileWriter(file.getAbsoluteFile(),true));
+	   bw.write(fileQry);
+	   bw.close();
+  }
 }
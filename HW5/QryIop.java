@@ -62,6 +62,15 @@ public abstract class QryIop extends Qry {
    *  The index of the location that the locIterator points to now.
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
+
+  /**
+   *  Locations are delta-encoded, so the locIterator decodes them
+   *  lazily and caches its progress:  the document index it decoded,
+   *  the index of the last decoded location, and that location.
+   */
+  private int locDecodeDocIndex = QryIop.INVALID_ITERATOR_INDEX;
+  private int locDecodeIndex = QryIop.INVALID_ITERATOR_INDEX;
+  private int locDecodeValue = 0;
   
   protected int nearDis = QryIop.INVALID_ITERATOR_INDEX;
   
@@ -76,9 +85,11 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocidIndex (this.docIteratorIndex, docid + 1);
     }
            
     this.locIteratorIndex = 0;
@@ -91,10 +102,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocidIndex (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -104,7 +113,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -119,12 +128,14 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
+   *  Return the locations for the document that the docIterator points to
    *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  The locations are decoded into a new array; iterate with the
+   *  locIterator to avoid the allocation.
+   *  @return The document's locations, in ascending order.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int[] docIteratorGetMatchPositions () {
+    return this.invertedList.getPositions (this.docIteratorIndex);
   }
 
   /**
@@ -196,6 +207,7 @@ public abstract class QryIop extends Qry {
     //  Initialize the internal iterators.
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+    this.locDecodeDocIndex = QryIop.INVALID_ITERATOR_INDEX;
   }
   
  /**
@@ -212,11 +224,10 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.locIteratorGetMatch () <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -227,7 +238,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -238,8 +249,33 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+
+    //  Frequency-only lists read locations from the index on demand.
+
+    if (! this.invertedList.hasPositions ()) {
+      return this.invertedList.getLazyPosition (this.docIteratorIndex,
+                                                this.locIteratorIndex);
+    }
+
+    //  Restart decoding if the docIterator moved or the locIterator
+    //  was reset; otherwise continue from the last decoded location.
+
+    if ((this.locDecodeDocIndex != this.docIteratorIndex) ||
+        (this.locDecodeIndex > this.locIteratorIndex)) {
+      this.locDecodeDocIndex = this.docIteratorIndex;
+      this.locDecodeIndex = QryIop.INVALID_ITERATOR_INDEX;
+      this.locDecodeValue = 0;
+    }
+
+    int offset = this.invertedList.getPositionOffset (this.docIteratorIndex);
+
+    while (this.locDecodeIndex < this.locIteratorIndex) {
+      this.locDecodeIndex ++;
+      this.locDecodeValue +=
+        this.invertedList.getPositionDelta (offset + this.locDecodeIndex);
+    }
+
+    return this.locDecodeValue;
   }
 
   /**
@@ -0,0 +1,48 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A #NEAR/1 (a b) operator whose inverted list is read from the
+ *  {@link PhraseIndex} instead of being computed from the lists of a
+ *  and b.  QryEval.optimizeQuery creates it; it behaves exactly like
+ *  the #NEAR/1 that it replaces.
+ */
+public class QryIopPhrase extends QryIop {
+
+  private String a;
+  private String b;
+
+  /**
+   *  @param a The processed (stemmed, lower-cased, etc) first term.
+   *  @param b The processed second term.
+   *  @param fieldString The field that the phrase occurs in.
+   */
+  public QryIopPhrase (String a, String b, String fieldString) {
+    this.a = a;
+    this.b = b;
+    this.field = fieldString;
+    this.nearDis = 1;
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+    this.invertedList = Idx.getPhraseList (this.field, this.a, this.b);
+
+    if (this.invertedList == null) {
+      throw new IllegalStateException
+        ("The phrase index has no list for " + this);
+    }
+  }
+
+  public String toString () {
+    return (this.getDisplayName () + "( " + this.a + "." + this.field + " " +
+            this.b + "." + this.field + " )");
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  An inverted list operator that profiles another one.  The profiled
+ *  operator is evaluated when this one is initialized (a lazy
+ *  operator is materialized), and this operator delegates its
+ *  iterators to it, so that the iterator calls and the postings that
+ *  they consume can be counted in its {@link QryProfile}.  A streamed
+ *  term stays streamed; its postings are those that the stream
+ *  consumed.  See QryProfile.wrap.
+ */
+public class QryIopProfiled extends QryIop {
+
+  private QryIop q;
+  private QryProfile profile;
+
+  /**
+   *  @param q The operator to profile.  Its arguments must be wrapped
+   *    already.
+   */
+  public QryIopProfiled (QryIop q) {
+    this.q = q;
+    this.args.add (q);
+    this.field = q.getField ();
+    this.nearDis = q.nearDis;
+    this.WindowDis = q.WindowDis;
+    this.setDisplayName (q.getDisplayName ());
+    this.profile = new QryProfile (q);
+  }
+
+  /**
+   *  @return The operator's profile.
+   */
+  public QryProfile getProfile () {
+    return this.profile;
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.  A streamed
+   *  term has no list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+    this.profile.results = this.q.getDf ();	// Materializes a lazy operator
+    this.invertedList = this.q.invertedList;
+  }
+
+  /**
+   *  Initialize and evaluate the profiled operator.
+   *  @param r A retrieval model (that is ignored)
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+    long start = System.nanoTime ();
+    super.initialize (r);
+    this.profile.addTime (start);
+  }
+
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    long start = System.nanoTime ();
+    boolean match = this.q.docIteratorHasMatch (r);
+    this.tf = this.q.tf;
+    this.profile.hasMatchCalls++;
+    this.profile.addTime (start);
+    return match;
+  }
+
+  public void docIteratorAdvancePast (int docid) {
+    long start = System.nanoTime ();
+    int index = this.q.getDocIdx ();
+    this.q.docIteratorAdvancePast (docid);
+    this.profile.postings += this.q.getDocIdx () - index;
+    this.profile.advanceCalls++;
+    this.profile.addTime (start);
+  }
+
+  public void docIteratorAdvanceTo (int docid) {
+    long start = System.nanoTime ();
+    int index = this.q.getDocIdx ();
+    this.q.docIteratorAdvanceTo (docid);
+    this.profile.postings += this.q.getDocIdx () - index;
+    this.profile.advanceCalls++;
+    this.profile.addTime (start);
+  }
+
+  public void IncdocIterator () {
+    this.q.IncdocIterator ();
+    this.profile.postings++;
+    this.profile.advanceCalls++;
+  }
+
+  public void docIteratorFinish () {
+    this.q.docIteratorFinish ();
+  }
+
+  public int docIteratorGetMatch () {
+    return this.q.docIteratorGetMatch ();
+  }
+
+  public int[] docIteratorGetMatchPositions () {
+    return this.q.docIteratorGetMatchPositions ();
+  }
+
+  public int getCtf () {
+    return this.q.getCtf ();
+  }
+
+  public int getDf () {
+    return this.q.getDf ();
+  }
+
+  public int getTf () {
+    return this.q.getTf ();
+  }
+
+  public int getDocIdx () {
+    return this.q.getDocIdx ();
+  }
+
+  public void setdocIterator () {
+    this.q.setdocIterator ();
+  }
+
+  public void locIteratorAdvance () {
+    this.q.locIteratorAdvance ();
+  }
+
+  public void locIteratorAdvancePast (int loc) {
+    this.q.locIteratorAdvancePast (loc);
+  }
+
+  public void locIteratorFinish () {
+    this.q.locIteratorFinish ();
+  }
+
+  public int locIteratorGetMatch () {
+    return this.q.locIteratorGetMatch ();
+  }
+
+  public boolean locIteratorHasMatch () {
+    return this.q.locIteratorHasMatch ();
+  }
+
+  public void setlocIterator () {
+    this.q.setlocIterator ();
+  }
+
+  public void InclocIterator () {
+    this.q.InclocIterator ();
+  }
+
+  public String toString () {
+    return this.q.toString ();
+  }
+}
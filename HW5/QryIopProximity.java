@@ -0,0 +1,455 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  The root class of the proximity operators (#NEAR, #WINDOW).  A
+ *  proximity operator matches the documents that contain all of its
+ *  arguments, at locations that satisfy the operator's constraint.
+ *  Subclasses only define how the locations of one document are
+ *  found; this class iterates over documents.
+ *  <p>
+ *  The operator is lazy.  Initialization doesn't evaluate it;
+ *  docIteratorHasMatch finds the next document that all arguments
+ *  match and computes the locations of that document only.  Matching
+ *  is also two-phase:  the approximation is the documents that all
+ *  arguments match, and docIteratorMatches computes the locations.
+ *  Under the Boolean models, a conjunction such as
+ *  #AND (#NEAR/1 (a b) c) intersects the approximation with c before
+ *  it asks for locations, so documents that c rejects never pay for
+ *  proximity evaluation.
+ *  </p><p>
+ *  The df and ctf statistics can't be known without evaluating every
+ *  document, so the first call to getDf or getCtf materializes the
+ *  inverted list, and the operator iterates over the list from then
+ *  on.  BM25 and Indri read these statistics when #SCORE is
+ *  initialized (see ScoringContext), so under those models a proximity
+ *  operator that is scored is always materialized before iteration
+ *  starts, e.g., the #NEAR/1 of #AND (#NEAR/1 (a b) c) under Indri.
+ *  Laziness helps the Boolean models, and operators that are only
+ *  iterated, e.g., a #NEAR inside #SYN.  Reading the statistics after
+ *  a lazy iteration has started is an error; setdocIterator restarts
+ *  the arguments and materializes the list instead.
+ *  </p>
+ */
+public abstract class QryIopProximity extends QryIop {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  True if the inverted list was materialized, so iteration uses
+   *  QryIop's iterators.
+   */
+  private boolean materialized = false;
+
+  /**
+   *  True if a lazy iteration has started, so the arguments' iterators
+   *  have moved.
+   */
+  private boolean started = false;
+
+  /**
+   *  Lazy iteration state:  the current candidate docid (or
+   *  INVALID_DOCID if the next candidate hasn't been found yet),
+   *  whether its locations have been evaluated, its locations, and
+   *  the index of the location that the locIterator points to now.
+   *  visited counts the matching documents that the iterator has
+   *  moved past; it is the lazy iterator's document index.
+   */
+  private int docid = Qry.INVALID_DOCID;
+  private int visited = 0;
+  private boolean evaluated = false;
+  private int[] locations = new int[16];
+  private int numLocations = 0;
+  private int locIndex = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Find the locations where the operator matches the document that
+   *  all of the arguments point to now, and report each one with
+   *  addLocation, in ascending order.  The arguments' locIterators
+   *  point to their first locations, and may be left anywhere.
+   */
+  protected abstract void evaluateLocations ();
+
+  /**
+   *  Add a location of the current document.
+   *  @param loc The location.
+   */
+  protected void addLocation (int loc) {
+
+    if (this.numLocations == this.locations.length) {
+      this.locations = Arrays.copyOf (this.locations, this.numLocations * 2);
+    }
+    this.locations[this.numLocations++] = loc;
+  }
+
+  /**
+   *  Evaluation is deferred until a document or a statistic is
+   *  needed; this just resets the operator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+    this.invertedList = null;
+    this.materialized = false;
+    this.started = false;
+    this.docid = Qry.INVALID_DOCID;
+    this.visited = 0;
+    this.numLocations = 0;
+    this.locIndex = 0;
+  }
+
+  /**
+   *  Evaluate the operator on every document and store the result in
+   *  an inverted list.
+   *  @throws IllegalStateException A lazy iteration has started.
+   */
+  private void materialize () {
+
+    if (this.materialized) {
+      return;
+    }
+
+    if (this.started) {
+      throw new IllegalStateException
+        (this.getDisplayName () +
+         " statistics must be read before its documents are iterated.");
+    }
+
+    this.invertedList = new InvList (this.getField ());
+
+    if (this.args.size () > 0) {
+      Qry q_0 = this.args.get (0);
+
+      while (this.docIteratorHasMatchAll (null)) {
+        int docid_0 = q_0.docIteratorGetMatch ();
+
+        this.numLocations = 0;
+        this.evaluateLocations ();
+
+        if (this.numLocations > 0) {
+          this.invertedList.appendPosting (docid_0, this.locations,
+                                           this.numLocations);
+        }
+
+        q_0.docIteratorAdvancePast (docid_0);
+      }
+    }
+
+    this.invertedList.buildSkipTable ();
+    this.materialized = true;
+    this.setdocIterator ();
+    this.setlocIterator ();
+  }
+
+  /**
+   *  Get the collection term frequency (ctf), materializing the
+   *  inverted list if necessary.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    this.materialize ();
+    return super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df), materializing the inverted list
+   *  if necessary.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    this.materialize ();
+    return super.getDf ();
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.  A lazy
+   *  operator evaluates documents that all arguments match until one
+   *  has a location that satisfies the operator.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+
+    if (this.materialized) {
+      return super.docIteratorHasMatch (r);
+    }
+
+    while (this.docIteratorHasApproximateMatch (r)) {
+      if (this.docIteratorMatches (r)) {
+        return true;
+      }
+      this.docIteratorAdvancePast (this.docid);
+    }
+
+    return false;
+  }
+
+  /**
+   *  Indicates whether all arguments match a document, without
+   *  evaluating its locations.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query may match a document, otherwise false.
+   */
+  public boolean docIteratorHasApproximateMatch (RetrievalModel r) {
+
+    if (this.materialized) {
+      return super.docIteratorHasApproximateMatch (r);
+    }
+
+    this.started = true;
+
+    if (this.docid == Qry.INVALID_DOCID) {
+      if ((this.args.size () == 0) || ! this.docIteratorHasMatchAll (null)) {
+        return false;
+      }
+
+      this.docid = this.args.get (0).docIteratorGetMatch ();
+      this.evaluated = false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate the locations of the candidate document, once.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the operator matches the candidate.
+   */
+  public boolean docIteratorMatches (RetrievalModel r) {
+
+    if (this.materialized) {
+      return true;
+    }
+
+    if (! this.evaluated) {
+      this.numLocations = 0;
+      this.evaluateLocations ();
+      this.evaluated = true;
+      this.locIndex = 0;
+      this.tf = this.numLocations;
+    }
+
+    return (this.numLocations > 0);
+  }
+
+  /**
+   *  @return True until the inverted list is materialized.
+   */
+  public boolean docIteratorIsTwoPhase () {
+    return ! this.materialized;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+
+    if (this.materialized) {
+      super.docIteratorAdvancePast (docid);
+    } else if ((this.docid != Qry.INVALID_DOCID) && (this.docid > docid)) {
+      this.locIndex = 0;
+    } else if (this.args.size () > 0) {
+      this.leaveCandidate ();
+      this.args.get (0).docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+
+    if (this.materialized) {
+      super.docIteratorAdvanceTo (docid);
+    } else if ((this.docid != Qry.INVALID_DOCID) && (this.docid >= docid)) {
+      this.locIndex = 0;
+    } else if (this.args.size () > 0) {
+      this.leaveCandidate ();
+      this.args.get (0).docIteratorAdvanceTo (docid);
+    }
+  }
+
+  /**
+   *  Forget the candidate document before the arguments move past it,
+   *  and count it if it was a match.
+   */
+  private void leaveCandidate () {
+
+    if ((this.docid != Qry.INVALID_DOCID) && this.evaluated &&
+        (this.numLocations > 0)) {
+      this.visited ++;
+    }
+
+    this.started = true;
+    this.docid = Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    this.docIteratorAdvancePast (Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    return (this.materialized) ? super.docIteratorGetMatch () : this.docid;
+  }
+
+  /**
+   *  Return the locations for the document that the docIterator points to
+   *  now.
+   *  @return The document's locations, in ascending order.
+   */
+  public int[] docIteratorGetMatchPositions () {
+    return (this.materialized) ? super.docIteratorGetMatchPositions () :
+      Arrays.copyOf (this.locations, this.numLocations);
+  }
+
+  /**
+   *  Returns the number of locations in the document that the
+   *  docIterator points to now.
+   *  @return Term frequency of the current document.
+   */
+  public int getTf () {
+    return (this.materialized) ? super.getTf () : this.numLocations;
+  }
+
+  /**
+   *  Returns Doc Index if the query operator's internal iterator currently
+   *  points to a location.  A lazy iterator returns the number of
+   *  matching documents that it has moved past; matches that an
+   *  advance skips without evaluating aren't counted.
+   *  @return Doc Index of currently pointed location.
+   */
+  public int getDocIdx () {
+    return (this.materialized) ? super.getDocIdx () : this.visited;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (this.materialized) {
+      super.locIteratorAdvance ();
+    } else {
+      this.locIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+
+    if (this.materialized) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    while ((this.locIndex < this.numLocations) &&
+           (this.locations[this.locIndex] <= loc)) {
+      this.locIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (this.materialized) {
+      super.locIteratorFinish ();
+    } else {
+      this.locIndex = this.numLocations;
+    }
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+    return (this.materialized) ?
+      super.locIteratorGetMatch () : this.locations[this.locIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    return (this.materialized) ?
+      super.locIteratorHasMatch () : (this.locIndex < this.numLocations);
+  }
+
+  /**
+   *  Set the location Iterator to zero.
+   */
+  public void setlocIterator () {
+    if (this.materialized) {
+      super.setlocIterator ();
+    } else {
+      this.locIndex = 0;
+    }
+  }
+
+  /**
+   *  Set the document Iterator to zero.  A lazy iterator can't move
+   *  backwards, so once it has started, its arguments are restarted
+   *  and the inverted list is materialized, as getDf does.
+   */
+  public void setdocIterator () {
+
+    if ((! this.materialized) && this.started) {
+      for (Qry q_i : this.args) {
+        ((QryIop) q_i).setdocIterator ();
+        ((QryIop) q_i).setlocIterator ();
+      }
+
+      this.started = false;
+      this.docid = Qry.INVALID_DOCID;
+      this.materialize ();
+    }
+
+    if (this.materialized) {
+      super.setdocIterator ();
+    }
+  }
+
+  /**
+   *  Increment the document location Iterator by one.
+   */
+  public void IncdocIterator () {
+    if (this.materialized) {
+      super.IncdocIterator ();
+    } else if (this.docIteratorHasMatch (null)) {
+      this.docIteratorAdvancePast (this.docid);
+    }
+  }
+
+  /**
+   *  Increment the position location Iterator by one.
+   */
+  public void InclocIterator () {
+    this.locIteratorAdvance ();
+  }
+}
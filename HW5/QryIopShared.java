@@ -0,0 +1,112 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  One occurrence of a QryIop subtree that occurs more than once in a
+ *  query, e.g., a term that is in both the original and the expansion
+ *  part of a relevance feedback query.  QryEval.shareSubexpressions
+ *  replaces every occurrence with a QryIopShared that refers to the
+ *  same Source.  The source evaluates the subtree once, and each
+ *  occurrence iterates over the resulting inverted list with its own
+ *  iterators, so the occurrences don't interfere.
+ *  <p>
+ *  The source counts its occurrences.  The first occurrence that is
+ *  initialized evaluates the subtree; the source releases the list
+ *  when every occurrence has it.  Occurrences may be in different
+ *  copies of a query that are evaluated by different threads, e.g.,
+ *  the docid ranges of QryEval.evaluatePartitions, so the list is
+ *  built once for all of them.
+ *  </p>
+ */
+public class QryIopShared extends QryIop {
+
+  /**
+   *  The subtree that the occurrences share.
+   */
+  public static class Source {
+
+    private QryIop q;
+    private int references = 0;
+    private int pending = 0;	// Occurrences not yet initialized
+    private InvList list = null;
+
+    /**
+     *  @param q The subtree.  A lazy operator is materialized, and a
+     *    term is not streamed.
+     */
+    public Source (QryIop q) {
+      this.q = q;
+
+      if (q instanceof QryIopTerm) {
+        ((QryIopTerm) q).setStreaming (false);
+      }
+    }
+
+    /**
+     *  Get the subtree's inverted list for one occurrence, evaluating
+     *  the subtree if this is the first occurrence to ask.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private synchronized InvList acquire () throws IOException {
+
+      if (this.pending == 0) {
+        this.q.initialize (null);
+        this.q.getDf ();		// Materializes a lazy operator
+        this.list = this.q.invertedList;
+        this.pending = this.references;
+      }
+
+      InvList list = this.list;
+
+      if (--this.pending == 0) {
+        this.list = null;
+      }
+
+      return list;
+    }
+  }
+
+  private Source source;
+
+  /**
+   *  @param source The shared subtree.
+   */
+  public QryIopShared (Source source) {
+    this.source = source;
+    this.source.references++;
+    this.field = source.q.getField ();
+    this.nearDis = source.q.nearDis;
+    this.WindowDis = source.q.WindowDis;
+    this.setDisplayName (source.q.getDisplayName ());
+  }
+
+  /**
+   *  @return The shared subtree.
+   */
+  public QryIop getSource () {
+    return this.source.q;
+  }
+
+  /**
+   *  @return The source, so that another occurrence can share it.
+   */
+  public Source getSharedSource () {
+    return this.source;
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+    this.invertedList = this.source.acquire ();
+  }
+
+  public String toString () {
+    return this.source.q.toString ();
+  }
+}
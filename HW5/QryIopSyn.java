@@ -25,6 +25,10 @@ public class QryIopSyn extends QryIop {
       return;
     }
 
+    //  A reusable buffer for the locations of the current document.
+
+    int[] positions = new int[16];
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
@@ -53,21 +57,31 @@ public class QryIopSyn extends QryIop {
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      int tf = 0;
 
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
+          QryIop q_iop = (QryIop) q_i;
+          int tf_i = q_iop.getTf ();
+
+          if (tf + tf_i > positions.length)
+            positions = Arrays.copyOf (positions, Math.max (tf + tf_i, positions.length * 2));
+
+          for (q_iop.setlocIterator (); q_iop.locIteratorHasMatch ();
+               q_iop.locIteratorAdvance ()) {
+            positions[tf++] = q_iop.locIteratorGetMatch ();
+          }
+
           q_i.docIteratorAdvancePast (minDocid);
 	}
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      Arrays.sort (positions, 0, tf);
+      this.invertedList.appendPosting (minDocid, positions, tf);
     }
+
+    this.invertedList.buildSkipTable ();
   }
 
 }
@@ -4,18 +4,63 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is materialized when the
+ *  operator is initialized.  In streaming mode the operator instead
+ *  wraps Lucene's DocsAndPositionsEnum and advances it on demand, so
+ *  docIteratorAdvanceTo uses the codec's skip lists and the list is
+ *  never copied.  Locations are read from Lucene only when the
+ *  locIterator asks for them.  A streaming iterator can only move
+ *  forward; setdocIterator reopens the Lucene enum.  getDocIdx counts
+ *  the postings that the stream has consumed, so that callers that
+ *  measure iteration by document index (e.g., QryIopProfiled) work in
+ *  both modes.  df and ctf come from the index statistics, which
+ *  count deleted documents.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  True if the operator iterates over Lucene's inverted list
+   *  directly instead of materializing it.
+   */
+  private boolean streaming = false;
+
+  /**
+   *  True if a materialized inverted list should be built without
+   *  locations.  Locations are still available, but they are read
+   *  from the index one document at a time.
+   */
+  private boolean frequencyOnly = false;
+
+  /**
+   *  Streaming state:  the Lucene inverted list, the docid that it
+   *  points to now, the number of postings that it has consumed, the
+   *  index of the location that the locIterator points to now, and
+   *  the locations of the current document that have been read from
+   *  Lucene so far.
+   */
+  private DocsAndPositionsEnum postingsEnum = null;
+  private int streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+  private int streamDocIndex = 0;
+  private int streamLocIndex = 0;
+  private int streamLocsRead = 0;
+  private int[] streamLocs = new int[16];
+  private int streamDf = 0;
+  private int streamCtf = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,13 +80,376 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Select whether the term's inverted list is materialized (the
+   *  default) or streamed directly from the Lucene index.  This must
+   *  be set before the operator is initialized.
+   *  @param streaming True to stream the inverted list.
+   */
+  public void setStreaming (boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   *  Select whether a materialized inverted list stores locations
+   *  (the default) or only term frequencies.  Bag-of-words scoring
+   *  doesn't need locations.  This must be set before the operator
+   *  is initialized.
+   *  @param frequencyOnly True to build a frequency-only list.
+   */
+  public void setFrequencyOnly (boolean frequencyOnly) {
+    this.frequencyOnly = frequencyOnly;
+  }
+
+  /**
+   *  @return True if a materialized inverted list is built without
+   *    locations.
+   */
+  public boolean isFrequencyOnly () {
+    return this.frequencyOnly;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    if (this.streaming) {
+      this.openStream ();
+    } else {
+      this.invertedList = InvListCache.get (this.term, this.field, ! this.frequencyOnly);
+    }
+  }
+
+  /**
+   *  Open the Lucene inverted list and position it on its first
+   *  document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void openStream () throws IOException {
+
+    BytesRef termBytes = new BytesRef(this.term);
+    Term t = new Term(this.field, termBytes);
+
+    this.streamDf = Idx.INDEXREADER.docFreq(t);
+    this.streamCtf = (int) Idx.INDEXREADER.totalTermFreq(t);
+    this.postingsEnum = null;
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.streamDocIndex = 0;
+
+    if (this.streamDf > 0) {
+      this.postingsEnum =
+        MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
+                                         MultiFields.getLiveDocs(Idx.INDEXREADER),
+                                         this.field, termBytes);
+    }
+
+    if (this.postingsEnum != null) {
+      this.streamDocid = this.postingsEnum.nextDoc();
+    }
+
+    this.streamLocReset ();
+  }
+
+  /**
+   *  Move the streaming iterator to the first document whose docid
+   *  is at least target.  The target must be beyond the current docid.
+   *  @param target The internal document id to advance to.
+   */
+  private void streamAdvance (int target) {
+    try {
+      if (target == this.streamDocid + 1) {
+        this.streamDocid = this.postingsEnum.nextDoc();
+      } else {
+        this.streamDocid = this.postingsEnum.advance(target);
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error accessing the Lucene index.", ex);
+    }
+    this.streamDocIndex ++;
+    this.streamLocReset ();
+  }
+
+  /**
+   *  Forget the locations of the previous document.
+   */
+  private void streamLocReset () {
+    this.streamLocIndex = 0;
+    this.streamLocsRead = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (! this.streaming) {
+      super.docIteratorAdvancePast (docid);
+    } else if (this.streamDocid <= docid) {
+      this.streamAdvance (docid + 1);
+    } else {
+      this.streamLocIndex = 0;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (! this.streaming) {
+      super.docIteratorAdvanceTo (docid);
+    } else if (this.streamDocid < docid) {
+      this.streamAdvance (docid);
+    } else {
+      this.streamLocIndex = 0;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (! this.streaming) {
+      super.docIteratorFinish ();
+    } else {
+      this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    }
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    return (this.streaming) ? this.streamDocid : super.docIteratorGetMatch ();
+  }
+
+  /**
+   *  Return the locations for the document that the docIterator points to
+   *  now.
+   *  @return The document's locations, in ascending order.
+   */
+  public int[] docIteratorGetMatchPositions () {
+    if (! this.streaming) {
+      return super.docIteratorGetMatchPositions ();
+    }
+
+    int tf = this.getTf ();
+    int[] locations = new int[tf];
+
+    for (int i = 0; i < tf; i++) {
+      locations[i] = this.streamLocation (i);
+    }
+
+    return locations;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (! this.streaming) {
+      return super.docIteratorHasMatch (r);
+    }
+
+    if (this.streamDocid != DocIdSetIterator.NO_MORE_DOCS) {
+      this.tf = this.getTf ();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    return (this.streaming) ? this.streamCtf : super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    return (this.streaming) ? this.streamDf : super.getDf ();
+  }
+
+  /**
+   *  Returns the term frequency in the document that the docIterator
+   *  points to now.
+   *  @return Term frequency of the current document.
+   */
+  public int getTf () {
+    if (! this.streaming) {
+      return super.getTf ();
+    }
+
+    try {
+      return this.postingsEnum.freq ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error accessing the Lucene index.", ex);
+    }
+  }
+
+  /**
+   *  Returns Doc Index if the query operator's internal iterator currently
+   *  points to a location.  A streaming iterator returns the number of
+   *  postings that it has consumed; postings that Lucene's skip lists
+   *  jump over aren't counted.
+   *  @return Doc Index of currently pointed location.
+   */
+  public int getDocIdx () {
+    return (this.streaming) ? this.streamDocIndex : super.getDocIdx ();
+  }
+
+  /**
+   *  Get the i'th location of the current document, reading locations
+   *  from Lucene as needed.
+   *  @param i The index of the location.
+   *  @return The location.
+   */
+  private int streamLocation (int i) {
+
+    if (i >= this.streamLocs.length) {
+      this.streamLocs =
+        Arrays.copyOf (this.streamLocs, Math.max (i + 1, this.streamLocs.length * 2));
+    }
+
+    try {
+      while (this.streamLocsRead <= i) {
+        this.streamLocs[this.streamLocsRead++] = this.postingsEnum.nextPosition ();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error accessing the Lucene index.", ex);
+    }
+
+    return this.streamLocs[i];
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (this.streaming) {
+      this.streamLocIndex ++;
+    } else {
+      super.locIteratorAdvance ();
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+    if (! this.streaming) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    int tf = this.getTf ();
+
+    while ((this.streamLocIndex < tf) &&
+           (this.streamLocation (this.streamLocIndex) <= loc)) {
+      this.streamLocIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (this.streaming) {
+      this.streamLocIndex = this.getTf ();
+    } else {
+      super.locIteratorFinish ();
+    }
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+    return (this.streaming) ?
+      this.streamLocation (this.streamLocIndex) : super.locIteratorGetMatch ();
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    return (this.streaming) ?
+      (this.streamLocIndex < this.getTf ()) : super.locIteratorHasMatch ();
+  }
+
+  /**
+   *  Set the location Iterator to zero.
+   */
+  public void setlocIterator () {
+    if (this.streaming) {
+      this.streamLocIndex = 0;
+    } else {
+      super.setlocIterator ();
+    }
+  }
+
+  /**
+   *  Set the document Iterator to zero.  A streaming iterator can't
+   *  move backwards, so the Lucene inverted list is reopened.
+   */
+  public void setdocIterator () {
+    if (! this.streaming) {
+      super.setdocIterator ();
+      return;
+    }
+
+    try {
+      this.openStream ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error accessing the Lucene index.", ex);
+    }
+  }
+
+  /**
+   *  Increment the document location Iterator by one.
+   */
+  public void IncdocIterator () {
+    if (! this.streaming) {
+      super.IncdocIterator ();
+    } else if (this.streamDocid != DocIdSetIterator.NO_MORE_DOCS) {
+      this.streamAdvance (this.streamDocid + 1);
+    }
+  }
+
+  /**
+   *  Increment the position location Iterator by one.
+   */
+  public void InclocIterator () {
+    this.locIteratorAdvance ();
   }
 
   /**
@@ -53,11 +461,10 @@ public class QryIopTerm extends QryIop {
   }
   
   public void PrintInvList(){
-	  int df = this.invertedList.df,tf=0;
 	  
-	  for(int doc=0;doc<df;doc++){
+	  while(this.docIteratorHasMatch(null)){
 		  
-		  tf = this.invertedList.getTf(doc);
+		  int tf = this.getTf();
 		  
 		  for(int TermPos=0; TermPos < tf; TermPos++){
 			  System.out.print(locIteratorGetMatch() +"->");
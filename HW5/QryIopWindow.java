@@ -1,94 +1,66 @@
-import java.io.*;
-import java.util.ArrayList;
-
 /**
- *  The NEAR operator for all retrieval models.
+ *  The WINDOW operator for all retrieval models.
  */
-public class QryIopWindow extends QryIop {
+public class QryIopWindow extends QryIopProximity {
 
 	 /**
-	   *  Evaluate the query operator; the result is an internal inverted
-	   *  list that may be accessed via the internal iterators.
-	   *  @throws IOException Error accessing the Lucene index.
+	   *  Find the locations where all of the arguments occur within a
+	   *  window of WindowDis words, in the document that all of the
+	   *  arguments point to now.  A match is reported at the end of its
+	   *  window, and a location of an argument is used by at most one
+	   *  match.
 	   */
 	@Override
-	protected void evaluate() throws IOException {
+	protected void evaluateLocations() {
 
-		// Initialize the parameters and create an array list(postings)
 		int win_dis = this.WindowDis,itr=0,start_args=-1,
 				args_size=this.args.size(),win_start=-1,win_stop=-1,present_loc=0;
 		
-		ArrayList<Integer> PosList = new ArrayList<Integer>();
-		this.invertedList = new InvList (this.getField());
-		
-		// HasMatchAll will bring check if for the DocID which is common to all the term
-		// If there is no match of doc(common docID), then no need to proceed further.
-		while(this.docIteratorHasMatchAll(null)){
+		/* Get all the position per doc */
+		while(true){
 			
-			/* Get all the position per doc */
-			while(true){
-				
-				win_start = Integer.MAX_VALUE;
-				win_stop = Integer.MIN_VALUE;
-				
-				for(itr=0;itr<args_size;itr++){
-				
-					QryIop q_i = (QryIop) args.get(itr);
-				
-					if(!(q_i.locIteratorHasMatch()))
-						break;
-				
-					present_loc = q_i.locIteratorGetMatch();
-				
-					if(present_loc <win_start){
-						win_start = present_loc;
-						start_args = itr;
-					}
-					if(present_loc>win_stop){
-						win_stop = present_loc;
-					}
-				
-				}
+			win_start = Integer.MAX_VALUE;
+			win_stop = Integer.MIN_VALUE;
 			
-			/* One of the term has reached the end, so break from this doc*/
-			if(itr!=args_size)
-				break;
+			for(itr=0;itr<args_size;itr++){
 			
-			/* Add the current window end position to the list 
-			 * Increment the loc iterator of all by one, since current position has been used
-			 * */
-			if(win_stop-win_start+1 <= win_dis){
-				
-				PosList.add(win_stop);
+				QryIop q_i = (QryIop) args.get(itr);
 			
-				for(int i=0;i<args_size;i++)
-					((QryIop) args.get(i)).InclocIterator();
+				if(!(q_i.locIteratorHasMatch()))
+					break;
 			
-			}else{ 
-				/* It is not within the window, increment the lowest idx */
-				int dis = win_stop-win_start+1;
-				((QryIop) args.get(start_args)).InclocIterator();
-			}
+				present_loc = q_i.locIteratorGetMatch();
 			
-		  }/* While(1) */
+				if(present_loc <win_start){
+					win_start = present_loc;
+					start_args = itr;
+				}
+				if(present_loc>win_stop){
+					win_stop = present_loc;
+				}
 			
-		    /* Now, add this doc and all the collected window position to the inverted list */
-			if(PosList.size()>0){
-				this.invertedList.appendPosting(this.args.get(0).docIteratorGetMatch(),PosList); 
-				PosList.clear();
 			}
+		
+		/* One of the term has reached the end, so break from this doc*/
+		if(itr!=args_size)
+			break;
+		
+		/* Add the current window end position to the list 
+		 * Increment the loc iterator of all by one, since current position has been used
+		 * */
+		if(win_stop-win_start+1 <= win_dis){
 			
-			if(this.args.get(0).docIteratorHasMatch(null)){ 
-				this.args.get(0).docIteratorAdvancePast(this.args.get(0).docIteratorGetMatch());
-			}
-		}
+			this.addLocation(win_stop);
+		
+			for(int i=0;i<args_size;i++)
+				((QryIop) args.get(i)).InclocIterator();
 		
-		// Keep the Iterator back to the initial position
-		if(this.invertedList.df >0 ){
-			this.setdocIterator();
-			this.setlocIterator();
+		}else{ 
+			/* It is not within the window, increment the lowest idx */
+			((QryIop) args.get(start_args)).InclocIterator();
 		}
 		
+	  }/* While(1) */
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,244 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  The execution profile of one query operator and its arguments:
+ *  the wall time spent in the operator (including its arguments), the
+ *  number of docIteratorHasMatch and advance calls, the postings that
+ *  its docIterator consumed (inverted list operators only) and the
+ *  size of its result, i.e., the documents that it matched.
+ *  <p>
+ *  wrap replaces every operator of a query tree with a profiling
+ *  operator (QrySopProfiled or QryIopProfiled) that delegates to it
+ *  and counts.  The wrapped tree isn't compiled or pruned, so the
+ *  profile describes the interpreted evaluation.  Trees that aren't
+ *  wrapped aren't affected, so profiling costs nothing when it is off.
+ *  </p><p>
+ *  A profile prints as a tree, one operator per line, and exports as
+ *  JSON.  The profiles of the queries that a thread evaluates are
+ *  recorded until takeRecorded collects them.
+ *  </p>
+ */
+public class QryProfile {
+
+  //  --------------- Constants and variables ---------------------
+
+  private String operator;
+  private boolean iop;
+  private String query = null;			// Roots only
+  private List<QryProfile> args = new ArrayList<QryProfile> ();
+
+  long nanos = 0;
+  long hasMatchCalls = 0;
+  long advanceCalls = 0;
+  long postings = 0;
+  long results = 0;
+
+  /**
+   *  The profiles that each thread recorded.
+   */
+  private static final ThreadLocal<List<QryProfile>> RECORDED =
+    new ThreadLocal<List<QryProfile>> () {
+      protected List<QryProfile> initialValue () {
+        return new ArrayList<QryProfile> ();
+      }
+    };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param q The operator that is profiled.  Its arguments must be
+   *    wrapped already.
+   */
+  QryProfile (Qry q) {
+    this.operator = (q.args.size () == 0) ? q.toString () : q.getDisplayName ();
+    this.iop = (q instanceof QryIop);
+
+    for (Qry q_i : q.args) {
+      QryProfile p_i = QryProfile.of (q_i);
+
+      if (p_i != null) {
+        this.args.add (p_i);
+      }
+    }
+  }
+
+  /**
+   *  Add the time since start to the operator's time.
+   *  @param start The System.nanoTime when the call started.
+   */
+  void addTime (long start) {
+    this.nanos += System.nanoTime () - start;
+  }
+
+  /**
+   *  Replace every operator of a query tree with a profiling operator.
+   *  @param q An optimized query that hasn't been initialized.
+   *  @return The profiling root operator.
+   */
+  public static Qry wrap (Qry q) {
+
+    for (int i = 0; i < q.args.size (); i++) {
+      q.args.set (i, wrap (q.args.get (i)));
+    }
+
+    if (q instanceof QrySop) {
+      return new QrySopProfiled ((QrySop) q);
+    } else {
+      return new QryIopProfiled ((QryIop) q);
+    }
+  }
+
+  /**
+   *  Get the profile of a profiling operator.
+   *  @param q An operator.
+   *  @return The operator's profile, or null if it isn't a profiling
+   *    operator.
+   */
+  public static QryProfile of (Qry q) {
+
+    if (q instanceof QrySopProfiled) {
+      return ((QrySopProfiled) q).getProfile ();
+    } else if (q instanceof QryIopProfiled) {
+      return ((QryIopProfiled) q).getProfile ();
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   *  Record the profile of an evaluated query for the current thread.
+   *  @param q The profiling root operator, after evaluation.
+   */
+  public static void record (Qry q) {
+    QryProfile profile = QryProfile.of (q);
+
+    if (profile != null) {
+      profile.query = q.toString ();
+      RECORDED.get ().add (profile);
+    }
+  }
+
+  /**
+   *  Get and forget the profiles that the current thread recorded.
+   *  @return The profiles, in the order in which they were recorded.
+   */
+  public static List<QryProfile> takeRecorded () {
+    List<QryProfile> recorded = RECORDED.get ();
+    RECORDED.remove ();
+    return recorded;
+  }
+
+  /**
+   *  @return The query string of a root profile, or null.
+   */
+  public String getQuery () {
+    return this.query;
+  }
+
+  /**
+   *  The operator's own time, i.e., not spent in its arguments.
+   */
+  private long getSelfNanos () {
+    long self = this.nanos;
+
+    for (QryProfile p_i : this.args) {
+      self -= p_i.nanos;
+    }
+    return Math.max (self, 0);
+  }
+
+  /**
+   *  The profile as a tree, one operator per line, with its arguments
+   *  indented below it.
+   *  @return The annotated tree.
+   */
+  @Override public String toString () {
+    StringBuilder tree = new StringBuilder ();
+    this.format (tree, "");
+    return tree.toString ();
+  }
+
+  private void format (StringBuilder tree, String indent) {
+
+    tree.append (String.format ("%-40s %10.3f ms %10.3f ms self  hasMatch %d  advance %d",
+                                indent + this.operator, this.nanos / 1e6,
+                                this.getSelfNanos () / 1e6,
+                                this.hasMatchCalls, this.advanceCalls));
+
+    if (this.iop) {
+      tree.append ("  postings ").append (this.postings);
+    }
+
+    tree.append ("  results ").append (this.results).append ('\n');
+
+    for (QryProfile p_i : this.args) {
+      p_i.format (tree, indent + "  ");
+    }
+  }
+
+  /**
+   *  The profile as a JSON object.  Arguments are nested in "args".
+   *  @return The JSON text, on one line.
+   */
+  public String toJson () {
+    StringBuilder json = new StringBuilder ();
+    this.appendJson (json);
+    return json.toString ();
+  }
+
+  private void appendJson (StringBuilder json) {
+
+    json.append ('{');
+
+    if (this.query != null) {
+      json.append ("\"query\":").append (quote (this.query)).append (',');
+    }
+
+    json.append ("\"operator\":").append (quote (this.operator))
+        .append (",\"timeNanos\":").append (this.nanos)
+        .append (",\"selfNanos\":").append (this.getSelfNanos ())
+        .append (",\"hasMatchCalls\":").append (this.hasMatchCalls)
+        .append (",\"advanceCalls\":").append (this.advanceCalls);
+
+    if (this.iop) {
+      json.append (",\"postings\":").append (this.postings);
+    }
+
+    json.append (",\"results\":").append (this.results)
+        .append (",\"args\":[");
+
+    for (int i = 0; i < this.args.size (); i++) {
+      if (i > 0) {
+        json.append (',');
+      }
+      this.args.get (i).appendJson (json);
+    }
+
+    json.append ("]}");
+  }
+
+  /**
+   *  A JSON string literal.
+   */
+  static String quote (String s) {
+
+    StringBuilder quoted = new StringBuilder ("\"");
+
+    for (int i = 0; i < s.length (); i++) {
+      char c = s.charAt (i);
+
+      if ((c == '"') || (c == '\\')) {
+        quoted.append ('\\').append (c);
+      } else if (c < 0x20) {
+        quoted.append (String.format ("\\u%04x", (int) c));
+      } else {
+        quoted.append (c);
+      }
+    }
+
+    return quoted.append ('"').toString ();
+  }
+}
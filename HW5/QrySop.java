@@ -16,6 +16,13 @@ import java.util.ArrayList;
 public abstract class QrySop extends Qry {
 
 	ArrayList<Double> weights = new ArrayList<Double>();
+
+  /**
+   *  The weight of each argument divided by the total weight, or 1/n
+   *  for operators without weights (e.g., #AND).  Set by initialize.
+   */
+  protected double[] normalizedWeights;
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -33,6 +40,63 @@ public abstract class QrySop extends Qry {
    */
   
   public abstract double getScoreDefault(RetrievalModel r, int docid) throws IOException;
+
+  /**
+   *  Get the log of the score of the document that docIteratorHasMatch
+   *  matched.  Indri belief operators combine their arguments in log
+   *  space, so they override this; other operators take the log of
+   *  their score.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score of a document.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The document whose default score is needed.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScoreDefault (RetrievalModel r, int docid)
+    throws IOException {
+    return Math.log (this.getScoreDefault (r, docid));
+  }
+
+  /**
+   *  Create an operator of the same type, display name and weights as
+   *  this one, without arguments, e.g., to copy a query tree.
+   *  Operators that wrap another operator (QrySopProfiled) have no
+   *  such constructor and can't be copied.
+   *  @return The new operator.
+   *  @throws IllegalStateException The operator can't be copied.
+   */
+  public QrySop copyOperator () {
+
+    QrySop copy;
+
+    try {
+      copy = this.getClass ().getDeclaredConstructor ().newInstance ();
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException
+        (this.getDisplayName () + " can't be copied.", ex);
+    }
+
+    copy.setDisplayName (this.getDisplayName ());
+    copy.weights.addAll (this.weights);
+    return copy;
+  }
+
+  /**
+   *  @return The normalized weights of the arguments.
+   */
+  public double[] getNormalizedWeights () {
+    return this.normalizedWeights;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -46,6 +110,31 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    //  Normalize the weights once, instead of for every document.
+
+    int size = this.args.size ();
+    this.normalizedWeights = new double[size];
+
+    if (this.weights.isEmpty ()) {
+      for (int i = 0; i < size; i++) {
+        this.normalizedWeights[i] = 1/(double)size;
+      }
+    } else if (this.weights.size () < size) {
+      throw new IllegalArgumentException
+        (this.getDisplayName () + " has " + size + " arguments but only " +
+         this.weights.size () + " weights.");
+    } else {
+      double total_weight = 0.0;
+
+      for (int i = 0; i < size; i++) {
+        total_weight += this.weights.get (i);
+      }
+
+      for (int i = 0; i < size; i++) {
+        this.normalizedWeights[i] = this.weights.get (i)/total_weight;
+      }
+    }
   }
   
 }
@@ -5,6 +5,13 @@ import java.io.*;
  */
 public class QrySopAnd extends QrySop {
 
+  /**
+   *  Indri:  a product of argument scores smaller than this is moved
+   *  into the log sum before the next multiplication, so it can't
+   *  underflow.  Scores are probabilities, at most 1.
+   */
+  static final double MIN_PRODUCT = 1e-150;
+
   /**
    *  Indicates whether the query has a match i.e all terms should be 
    *  present in a particular doc. This is taken care by 
@@ -93,33 +100,62 @@ public class QrySopAnd extends QrySop {
 	  }
   
   /**
-   *  getScore for the Indri retrieval model for AND query.
-   *  Go through all the terms covered by the and look for the cached docID.
-   *  Now, get the minimum term frequency of the doc since this is an AND
-   *  operator.
+   *  getScore for the Indri retrieval model for AND query.  The
+   *  geometric mean of the arguments' scores is computed in log space,
+   *  so only the root of a belief tree calls Math.exp.
    *  @param r The retrieval model that determines how scores are calculated.
    *  @return The document score.
    *  @throws IOException Error accessing the Lucene index
    */
   private double getScoreIndri(RetrievalModel r) throws IOException{
-	
+	  return Math.exp(this.getLogScoreIndri(r));
+  }
+
+  /**
+   *  The log of the Indri score:  (1/n) times the sum of the
+   *  arguments' log scores.  The scores are multiplied together and
+   *  the product is moved into the sum before it can underflow, so a
+   *  document usually needs a single Math.log however long the query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private double getLogScoreIndri(RetrievalModel r) throws IOException{
+
 	    int MinDocID = this.docIteratorGetMatch();
-	    double score = 1.0;
+	    double logScore = 0.0, product = 1.0;
 	    int size = this.args.size();
-	    	
+
 	    for(int i=0;i<size;i++){
 	    	QrySop q_i = (QrySop) this.args.get(i);
-	    		
+	    	double score;
+
 	    	if(q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch()==MinDocID)){
-	    		score *= q_i.getScore(r);
+	    		score = q_i.getScore(r);
 	    	}else{
-	    		score *= q_i.getScoreDefault(r,MinDocID);
+	    		score = q_i.getScoreDefault(r,MinDocID);
+	    	}
+
+	    	if(product < MIN_PRODUCT){
+	    		logScore += Math.log(product);
+	    		product = 1.0;
 	    	}
+	    	product *= score;
 	    }
-	    	
-	    return (Math.pow(score,1/(double)size));
+
+	    return this.normalizedWeights[0]*(logScore + Math.log(product));
   }
-  
+
+  @Override
+  public double getLogScore (RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelIndri) {
+      return this.getLogScoreIndri (r);
+    } else {
+      return super.getLogScore (r);
+    }
+  }
+
   @Override
   /**
    *  getScoreDefault for the Indri retrieval model for Nested AND query. 
@@ -129,16 +165,27 @@ public class QrySopAnd extends QrySop {
    *  @throws IOException Error accessing the Lucene index
    */
   public double getScoreDefault(RetrievalModel r,int DocID)throws IOException{
-	  
+	  return Math.exp(this.getLogScoreDefault(r,DocID));
+  }
+
+  @Override
+  public double getLogScoreDefault(RetrievalModel r,int DocID)throws IOException{
+
 	  	int size= this.args.size() ;
-	  	double score = 1.0;
+	  	double logScore = 0.0, product = 1.0;
 
 	  	for(int i=0;i<size;i++){
 	  		QrySop q_i = (QrySop)this.args.get(i);
-    		score *= q_i.getScoreDefault(r,DocID);	
+	  		double score = q_i.getScoreDefault(r,DocID);
+
+	    	if(product < MIN_PRODUCT){
+	    		logScore += Math.log(product);
+	    		product = 1.0;
+	    	}
+	    	product *= score;
 	  	}
-	  	
-	  	return (Math.pow(score,1/(double)size));
+
+	  	return this.normalizedWeights[0]*(logScore + Math.log(product));
   }
 
 }
@@ -0,0 +1,139 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  A score operator that profiles another one.  Every call is
+ *  delegated to the profiled operator, and counted and timed in its
+ *  {@link QryProfile}.  See QryProfile.wrap.
+ */
+public class QrySopProfiled extends QrySop {
+
+  private QrySop q;
+  private QryProfile profile;
+  private int lastMatch = Qry.INVALID_DOCID;
+
+  /**
+   *  @param q The operator to profile.  Its arguments must be wrapped
+   *    already.
+   */
+  public QrySopProfiled (QrySop q) {
+    this.q = q;
+    this.args.add (q);
+    this.setDisplayName (q.getDisplayName ());
+    this.profile = new QryProfile (q);
+  }
+
+  /**
+   *  @return The operator's profile.
+   */
+  public QryProfile getProfile () {
+    return this.profile;
+  }
+
+  /**
+   *  Count a match.  A document is counted once, however often the
+   *  operator is asked whether it matches.
+   */
+  private boolean countMatch (boolean match) {
+    if (match) {
+      int docid = this.q.docIteratorGetMatch ();
+
+      if (docid != this.lastMatch) {
+        this.lastMatch = docid;
+        this.profile.results++;
+      }
+    }
+    return match;
+  }
+
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    long start = System.nanoTime ();
+    boolean match = this.countMatch (this.q.docIteratorHasMatch (r));
+    this.profile.hasMatchCalls++;
+    this.profile.addTime (start);
+    return match;
+  }
+
+  public boolean docIteratorHasApproximateMatch (RetrievalModel r) {
+    long start = System.nanoTime ();
+    boolean match = this.q.docIteratorHasApproximateMatch (r);
+    this.profile.hasMatchCalls++;
+    this.profile.addTime (start);
+    return match;
+  }
+
+  public boolean docIteratorMatches (RetrievalModel r) {
+    long start = System.nanoTime ();
+    boolean match = this.countMatch (this.q.docIteratorMatches (r));
+    this.profile.addTime (start);
+    return match;
+  }
+
+  public boolean docIteratorIsTwoPhase () {
+    return this.q.docIteratorIsTwoPhase ();
+  }
+
+  public int docIteratorGetMatch () {
+    return this.q.docIteratorGetMatch ();
+  }
+
+  public void docIteratorAdvancePast (int docid) {
+    long start = System.nanoTime ();
+    this.q.docIteratorAdvancePast (docid);
+    this.profile.advanceCalls++;
+    this.profile.addTime (start);
+  }
+
+  public void docIteratorAdvanceTo (int docid) {
+    long start = System.nanoTime ();
+    this.q.docIteratorAdvanceTo (docid);
+    this.profile.advanceCalls++;
+    this.profile.addTime (start);
+  }
+
+  public double getScore (RetrievalModel r) throws IOException {
+    long start = System.nanoTime ();
+    double score = this.q.getScore (r);
+    this.profile.addTime (start);
+    return score;
+  }
+
+  public double getScoreDefault (RetrievalModel r, int docid) throws IOException {
+    long start = System.nanoTime ();
+    double score = this.q.getScoreDefault (r, docid);
+    this.profile.addTime (start);
+    return score;
+  }
+
+  public double getLogScore (RetrievalModel r) throws IOException {
+    long start = System.nanoTime ();
+    double score = this.q.getLogScore (r);
+    this.profile.addTime (start);
+    return score;
+  }
+
+  public double getLogScoreDefault (RetrievalModel r, int docid)
+    throws IOException {
+    long start = System.nanoTime ();
+    double score = this.q.getLogScoreDefault (r, docid);
+    this.profile.addTime (start);
+    return score;
+  }
+
+  /**
+   *  Initialize the profiled operator.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+    long start = System.nanoTime ();
+    this.q.initialize (r);
+    this.profile.addTime (start);
+  }
+
+  public String toString () {
+    return this.q.toString ();
+  }
+}
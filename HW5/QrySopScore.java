@@ -14,6 +14,25 @@ public class QrySopScore extends QrySop {
    *  Document-independent values that should be determined just once.
    *  Some retrieval models have these, some don't.
    */
+
+  /**
+   *  The argument's scoring constants for the retrieval model, or
+   *  null if the model has none.
+   */
+  private ScoringContext context;
+
+  /**
+   *  Block-max state for dynamic pruning:  a cursor over the term's
+   *  blocks (null if it has none), and BM25 values that are computed
+   *  the first time a bound is requested.
+   */
+  private BlockMaxIndex.Cursor blockMax;
+  private int blockLastDocid = Integer.MAX_VALUE;
+  private double maxScore = Double.NaN;
+  private double idf;
+  private double averageLength;
+  private double k_1;
+  private double b;
   
   /**
    *  Indicates whether the query has a match.
@@ -24,6 +43,32 @@ public class QrySopScore extends QrySop {
     return this.docIteratorHasMatchFirst (r);
   }
 
+  /**
+   *  The argument's approximation, e.g., the documents that contain
+   *  all of a #NEAR's terms.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query may match a document, otherwise false.
+   */
+  public boolean docIteratorHasApproximateMatch (RetrievalModel r) {
+    return this.docIteratorHasApproximateMatchFirst (r);
+  }
+
+  /**
+   *  Verify the candidate with the argument.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the candidate matches, otherwise false.
+   */
+  public boolean docIteratorMatches (RetrievalModel r) {
+    return this.args.get (0).docIteratorMatches (r);
+  }
+
+  /**
+   *  @return True if the argument has two matching phases.
+   */
+  public boolean docIteratorIsTwoPhase () {
+    return this.args.get (0).docIteratorIsTwoPhase ();
+  }
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -49,15 +94,7 @@ public class QrySopScore extends QrySop {
   public double getScoreDefault(RetrievalModel r, int docid) throws IOException{
 	 
 	  //System.out.println("Getting default score SopScore");
-  	QryIop q_inv = (QryIop) this.args.get(0);
-  	double ctf = (double)q_inv.getCtf();
-  	double tot_len = (double)Idx.getSumOfFieldLengths(q_inv.field);
-  	double doc_length = (double)Idx.getFieldLength(q_inv.field,docid);
-	double mu = ((RetrievalModelIndri) r).get_mau();
-	double lambda = ((RetrievalModelIndri) r).get_lambda();
-  	double prior=ctf/tot_len;
-  	
-  	return (1-lambda)*mu*prior/(doc_length + mu) + lambda*prior;
+  	return this.context.defaultScoreIndri(docid);
   }
   /**
    *  getScore for the Unranked retrieval model.
@@ -113,22 +150,122 @@ public class QrySopScore extends QrySop {
 	    } else {
 	    
 	    	QryIop q_inv = (QryIop) this.args.get(0);
-	    	double tf = (double)q_inv.tf,df = (double)q_inv.getDf();
-	    	double k_1 = ((RetrievalModelBM25) r).get_k1();
-	    	double b = ((RetrievalModelBM25) r).get_b();
-	    	double k_3 = ((RetrievalModelBM25) r).get_k3();
-	    	
-	    	double num_docs = (double)Idx.getDocCount(q_inv.field);
-	    	double tot_len = (double)Idx.getSumOfFieldLengths(q_inv.field);
-	    	double average_len = tot_len/num_docs;
-	    	double doc_length = (double)Idx.getFieldLength(q_inv.field,q_inv.docIteratorGetMatch());
-	    	
-	    	double idf = Math.max(Math.log(num_docs - df +0.50) - Math.log(df+ 0.50),0.00);
-	    	double tf_weight = tf/(tf + k_1*((1-b) + (b*doc_length/average_len)));
-	     
-	    	return idf*tf_weight;
+	    	return this.context.scoreBM25((double)q_inv.tf, q_inv.docIteratorGetMatch());
 	    }
   }
+
+  /**
+   *  Get the scoring constants that were built when the operator was
+   *  initialized.
+   *  @return The context, or null if the retrieval model has none.
+   */
+  public ScoringContext getScoringContext() {
+	  return this.context;
+  }
+
+  /**
+   *  The BM25 idf of a term.
+   *  @param num_docs The number of documents that have the field.
+   *  @param df The term's document frequency.
+   *  @return The idf, which is never negative.
+   */
+  static double getIdfBM25(double num_docs, double df) {
+	  return Math.max(Math.log(num_docs - df +0.50) - Math.log(df+ 0.50),0.00);
+  }
+
+  /**
+   *  The BM25 tf weight of a term in a document.  It is always less
+   *  than 1 (or 1 when k_1 is 0).
+   *  @param tf The term frequency in the document.
+   *  @param doc_length The length of the document's field.
+   *  @param average_len The average length of the field.
+   *  @param k_1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The tf weight.
+   */
+  static double getTfWeightBM25(double tf, double doc_length, double average_len,
+		  double k_1, double b) {
+	  return tf/(tf + k_1*((1-b) + (b*doc_length/average_len)));
+  }
+
+  /**
+   *  An upper bound on the score of any document for the BM25
+   *  retrieval model.  If the argument has a materialized inverted
+   *  list the bound is the exact maximum; a streamed term uses the
+   *  idf, since the tf weight is at most 1.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScoreBM25(RetrievalModel r) throws IOException {
+
+	  if (! Double.isNaN(this.maxScore)) {
+		  return this.maxScore;
+	  }
+
+	  QryIop q_inv = (QryIop) this.args.get(0);
+	  double df = (double)q_inv.getDf();
+	  double num_docs = (double)Idx.getDocCount(q_inv.field);
+	  double idf = getIdfBM25(num_docs, df);
+
+	  this.idf = idf;
+	  this.averageLength = (double)Idx.getSumOfFieldLengths(q_inv.field)/num_docs;
+	  this.k_1 = ((RetrievalModelBM25) r).get_k1();
+	  this.b = ((RetrievalModelBM25) r).get_b();
+
+	  if (q_inv.invertedList == null) {
+		  this.maxScore = idf;
+	  } else {
+		  this.maxScore = idf*q_inv.invertedList.getMaxTfWeightBM25(this.k_1, this.b);
+	  }
+	  return this.maxScore;
+  }
+
+  /**
+   *  An upper bound on the BM25 score of the documents in the block of
+   *  the argument's inverted list that contains docid.  The bound uses
+   *  the largest tf and the smallest length in the block, and is never
+   *  larger than getMaxScoreBM25.  Without a block-max index the whole
+   *  list is one block.  Call getBlockLastDocid to find where the
+   *  block ends.  Blocks are expected to be visited in docid order.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return The upper bound, or 0 if the argument has no postings at
+   *    or after docid.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getBlockMaxScoreBM25(RetrievalModel r, int docid) throws IOException {
+
+	  double max = this.getMaxScoreBM25(r);
+
+	  this.blockLastDocid = Integer.MAX_VALUE;
+
+	  if (this.blockMax == null) {
+		  return max;
+	  }
+
+	  if (! this.blockMax.advance(docid)) {
+		  return 0.0;
+	  }
+
+	  this.blockLastDocid = this.blockMax.getLastDocid();
+
+	  double tf_weight = getTfWeightBM25(this.blockMax.getMaxTf(),
+			  this.blockMax.getMinLength(), this.averageLength, this.k_1, this.b);
+
+	  return Math.min(max, this.idf*tf_weight);
+  }
+
+  /**
+   *  The last docid of the block that getBlockMaxScoreBM25 found most
+   *  recently.
+   *  @return The last docid, or Integer.MAX_VALUE if the block extends
+   *    to the end of the list.
+   */
+  public int getBlockLastDocid() {
+
+	  return this.blockLastDocid;
+  }
   
   /**
    *  getScore for the Indri retrieval model.
@@ -143,16 +280,76 @@ public class QrySopScore extends QrySop {
 	    } else {
 	    	
 	    	QryIop q_inv = (QryIop) this.args.get(0);
-	    	double tf = (double)q_inv.tf,ctf = (double)q_inv.getCtf();
-	    	double mu = ((RetrievalModelIndri) r).get_mau();
-	    	double lambda = ((RetrievalModelIndri) r).get_lambda();
-	    	double tot_len = (double)Idx.getSumOfFieldLengths(q_inv.field);
-	    	double doc_length = (double)Idx.getFieldLength(q_inv.field,q_inv.docIteratorGetMatch());
-	    	double prior = ctf/tot_len;
-	    	
-	    	return (1- lambda)*(tf+mu*prior)/(doc_length + mu) + (lambda)*prior;
+	    	return this.context.scoreIndri((double)q_inv.tf, q_inv.docIteratorGetMatch());
 	    }
   }
+
+  /**
+   *  The Indri score of a term in a document that contains it.
+   *  @param tf The term frequency in the document.
+   *  @param prior The term's collection probability, ctf/length.
+   *  @param doc_length The length of the document's field.
+   *  @param mu The Indri mu parameter.
+   *  @param lambda The Indri lambda parameter.
+   *  @return The smoothed score.
+   */
+  static double getMatchScoreIndri(double tf, double prior, double doc_length,
+		  double mu, double lambda) {
+	  return (1- lambda)*(tf+mu*prior)/(doc_length + mu) + (lambda)*prior;
+  }
+
+  /**
+   *  The Indri score of a term in a document that doesn't contain it.
+   *  @param prior The term's collection probability, ctf/length.
+   *  @param doc_length The length of the document's field.
+   *  @param mu The Indri mu parameter.
+   *  @param lambda The Indri lambda parameter.
+   *  @return The smoothed score.
+   */
+  static double getDefaultScoreIndri(double prior, double doc_length,
+		  double mu, double lambda) {
+	  return (1-lambda)*mu*prior/(doc_length + mu) + lambda*prior;
+  }
+
+  /**
+   *  An upper bound on the Indri score of a document that contains
+   *  the term.  If the argument has a materialized inverted list the
+   *  bound is the exact maximum; otherwise it uses tf &lt;= length.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScoreIndri(RetrievalModel r) throws IOException {
+
+	  QryIop q_inv = (QryIop) this.args.get(0);
+	  double mu = ((RetrievalModelIndri) r).get_mau();
+	  double lambda = ((RetrievalModelIndri) r).get_lambda();
+
+	  if (q_inv.invertedList != null) {
+		  return q_inv.invertedList.getMaxScoreIndri(mu, lambda);
+	  }
+
+	  double prior = (double)q_inv.getCtf()/(double)Idx.getSumOfFieldLengths(q_inv.field);
+	  return (1-lambda) + lambda*prior;
+  }
+
+  /**
+   *  An upper bound on the Indri score of a document that doesn't
+   *  contain the term, i.e., on getScoreDefault.  The default score
+   *  is largest in the shortest document.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScoreDefaultIndri(RetrievalModel r) throws IOException {
+
+	  QryIop q_inv = (QryIop) this.args.get(0);
+	  double mu = ((RetrievalModelIndri) r).get_mau();
+	  double lambda = ((RetrievalModelIndri) r).get_lambda();
+	  double prior = (double)q_inv.getCtf()/(double)Idx.getSumOfFieldLengths(q_inv.field);
+
+	  return getDefaultScoreIndri(prior, Idx.getMinFieldLength(q_inv.field), mu, lambda);
+  }
   
   /**
    *  Initialize the query operator (and its arguments), including any
@@ -165,6 +362,18 @@ public class QrySopScore extends QrySop {
   public void initialize (RetrievalModel r) throws IOException {
     Qry q = this.args.get (0);
     q.initialize (r);
+    this.context = ScoringContext.create ((QryIop) q, r);
+    this.maxScore = Double.NaN;
+
+    //  A shared term has the block-max entries of the term.
+
+    if (q instanceof QryIopShared) {
+      q = ((QryIopShared) q).getSource ();
+    }
+
+    this.blockMax = (q instanceof QryIopTerm) ?
+      Idx.getBlockMaxCursor (((QryIop) q).getField (), ((QryIopTerm) q).getTerm ()) :
+      null;
   }
 
 }
@@ -34,30 +34,60 @@ public class QrySopWand extends QrySop {
     }
   }
   
+  /**
+   *  getScore for the Indri retrieval model.  The weighted geometric
+   *  mean is computed in log space, so only the root of a belief tree
+   *  calls Math.exp.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
   private double getScoreIndri(RetrievalModel r) throws IOException{
-	
+	  return Math.exp(this.getLogScoreIndri(r));
+  }
+
+  /**
+   *  The log of the Indri score:  the sum of each argument's log score
+   *  times its normalized weight.  Arguments with weight 0 are
+   *  skipped, as x^0 is 1 even when x is 0.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private double getLogScoreIndri(RetrievalModel r) throws IOException{
+
 	    int MinDocID = this.docIteratorGetMatch();
-	    double score = 1.0,qw=0.0,total_weight=0.0;
+	    double score = 0.0;
 	    int size = this.args.size();
-	    	
-	    for(int i=0;i<size;i++){
-	    	total_weight += this.weights.get(i);
-	    }
-	    
+
 	    for(int i=0;i<size;i++){
 	    	QrySop q_i = (QrySop) this.args.get(i);
-	    	qw = this.weights.get(i);
-	    	
+	    	double qw = this.normalizedWeights[i];
+
+	    	if(qw == 0.0){
+	    		continue;
+	    	}
+
 	    	if(q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch()==MinDocID)){
-	    		score *= Math.pow(q_i.getScore(r),qw/total_weight);
+	    		score += qw*q_i.getLogScore(r);
 	    	}else{
-	    		score *= Math.pow(q_i.getScoreDefault(r,MinDocID),qw/total_weight);
+	    		score += qw*q_i.getLogScoreDefault(r,MinDocID);
 	    	}
 	    }
-	    	
+
 	    return score;
   }
-  
+
+  @Override
+  public double getLogScore (RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelIndri) {
+      return this.getLogScoreIndri (r);
+    } else {
+      return super.getLogScore (r);
+    }
+  }
+
   @Override
   /**
    *  getScoreDefault for the Indri retrieval model for Nested AND query. 
@@ -67,20 +97,24 @@ public class QrySopWand extends QrySop {
    *  @throws IOException Error accessing the Lucene index
    */
   public double getScoreDefault(RetrievalModel r,int DocID)throws IOException{
-	  
+	  return Math.exp(this.getLogScoreDefault(r,DocID));
+  }
+
+  @Override
+  public double getLogScoreDefault(RetrievalModel r,int DocID)throws IOException{
+
 	  	int size= this.args.size() ;
-	  	double score = 1.0,qw=0.0,total_weight=0.0;
+	  	double score = 0.0;
 
-	    for(int i=0;i<size;i++){
-	    	total_weight += this.weights.get(i);
-	    }
-	    
 	  	for(int i=0;i<size;i++){
 	    	QrySop q_i = (QrySop) this.args.get(i);
-	    	qw = this.weights.get(i);
-    		score *= Math.pow(q_i.getScoreDefault(r,DocID),qw/total_weight);	
+	    	double qw = this.normalizedWeights[i];
+
+	    	if(qw != 0.0){
+	    		score += qw*q_i.getLogScoreDefault(r,DocID);
+	    	}
 	  	}
-	  	
+
 	  	return score;
   }
 
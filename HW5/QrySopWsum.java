@@ -37,22 +37,16 @@ public class QrySopWsum extends QrySop {
   private double getScoreIndri(RetrievalModel r) throws IOException{
 	
 	    int MinDocID = this.docIteratorGetMatch();
-	    double score = 0.0,qw=0.0,total_weight=0.0;
+	    double score = 0.0;
 	    int size = this.args.size();
-	    	
-	    for(int i=0;i<size;i++){
-	    	total_weight += this.weights.get(i);
-	    }
-	    	    
+
 	    for(int i=0;i<size;i++){
 	    	QrySop q_i = (QrySop) this.args.get(i);
-	    	qw = this.weights.get(i);
 	    	
 	    	if(q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch()==MinDocID)){
-	    		score += qw/total_weight*q_i.getScore(r);
+	    		score += this.normalizedWeights[i]*q_i.getScore(r);
 	    	}else{
-	    		//System.out.println("Wsum default part from main score");
-	    		score += qw/total_weight*q_i.getScoreDefault(r,MinDocID);
+	    		score += this.normalizedWeights[i]*q_i.getScoreDefault(r,MinDocID);
 	    	}
 	    }
 	    	
@@ -70,17 +64,11 @@ public class QrySopWsum extends QrySop {
   public double getScoreDefault(RetrievalModel r,int DocID)throws IOException{
 	  
 	  	int size= this.args.size() ;
-	  	double score = 0.0,qw=0.0,total_weight=0.0;
-	  
-	    for(int i=0;i<size;i++){
-	    	total_weight += this.weights.get(i);
-	    }
-	    //System.out.println("Wsum Default score : args size  = " + size + " total weight = " + total_weight);
+	  	double score = 0.0;
 
 	  	for(int i=0;i<size;i++){
 	    	QrySop q_i = (QrySop) this.args.get(i);
-	    	qw = this.weights.get(i);
-    		score += qw/total_weight*q_i.getScoreDefault(r,DocID);	
+    		score += this.normalizedWeights[i]*q_i.getScoreDefault(r,DocID);	
 	  	}
 	  	
 	  	return score;
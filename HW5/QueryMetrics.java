@@ -0,0 +1,373 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ *  Per-query metrics:  the time spent in each phase of a query (parse,
+ *  initialize, evaluate, output), the postings that it read, the
+ *  documents that it scored, and the bytes that it allocated.  A
+ *  summary with percentiles is printed at the end of a run, and the
+ *  metrics of each query may be written to a file.
+ *  <p>
+ *  Postings are counted in two ways.  An evaluation with dynamic
+ *  pruning reports the postings that it scored ("postings scored"),
+ *  which DynamicPruning counts anyway.  Other evaluations read their
+ *  lists exhaustively, so they report the sizes of their lists
+ *  ("postings in lists"); a streamed term counts its whole list.
+ *  </p><p>
+ *  Recording is cheap:  a phase costs two System.nanoTime calls, and
+ *  allocation is read from the JVM's per-thread counter when a query
+ *  begins and ends.  Nothing is forced (e.g., no garbage collection),
+ *  so the metrics don't disturb what they measure.
+ *  </p><p>
+ *  The query that a thread works on is its current query.  Code that
+ *  evaluates part of a query in another thread (e.g., a docid range)
+ *  attaches that thread to the query while it works, so its time,
+ *  counts and allocation are added to the query's.  Phase times are
+ *  then summed over the threads.  Code that runs without a current
+ *  query records nothing.
+ *  </p>
+ */
+public class QueryMetrics {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int PARSE = 0;
+  public static final int INITIALIZE = 1;
+  public static final int EVALUATE = 2;
+  public static final int OUTPUT = 3;
+
+  private static final String[] PHASES =
+    { "parse", "initialize", "evaluate", "output" };
+
+  private static final double[] PERCENTILES = { 50.0, 90.0, 99.0 };
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+    threadMXBean ();
+
+  /**
+   *  The metrics of one query.  Threads that work on the same query
+   *  add to it at once, so it is synchronized.
+   */
+  public static class Query {
+
+    private String qid;
+    private long[] nanos = new long[PHASES.length];
+    private long postingsScored = 0;
+    private long postingsInLists = 0;
+    private long documentsScored = 0;
+    private long allocatedBytes = 0;
+
+    private Query (String qid) {
+      this.qid = qid;
+    }
+
+    /**
+     *  Add the time since start to a phase.
+     *  @param phase PARSE, INITIALIZE, EVALUATE or OUTPUT.
+     *  @param start The System.nanoTime when the phase started.
+     */
+    public synchronized void addTime (int phase, long start) {
+      this.nanos[phase] += System.nanoTime () - start;
+    }
+
+    private synchronized void addCounts (long scored, long inLists,
+                                         long documents, long bytes) {
+      this.postingsScored += scored;
+      this.postingsInLists += inLists;
+      this.documentsScored += documents;
+      this.allocatedBytes += bytes;
+    }
+
+    private synchronized long getTotalNanos () {
+      long total = 0;
+
+      for (long n : this.nanos) {
+        total += n;
+      }
+      return total;
+    }
+  }
+
+  /**
+   *  A thread's current query, and the thread's allocation counter when
+   *  it was attached.
+   */
+  private static class Context {
+    private Query query;
+    private long allocatedAtStart;
+  }
+
+  private static final ThreadLocal<Context> CURRENT = new ThreadLocal<Context> ();
+
+  /**
+   *  The queries that ended, in the order in which they ended.
+   */
+  private static final List<Query> QUERIES = new ArrayList<Query> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  private static com.sun.management.ThreadMXBean threadMXBean () {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean ();
+
+    if ((bean instanceof com.sun.management.ThreadMXBean) &&
+        ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported ()) {
+      return (com.sun.management.ThreadMXBean) bean;
+    }
+    return null;
+  }
+
+  /**
+   *  The bytes that the current thread has allocated, or 0 if the JVM
+   *  doesn't count them.
+   */
+  private static long allocatedBytes () {
+    return (THREADS == null) ? 0 :
+      THREADS.getThreadAllocatedBytes (Thread.currentThread ().getId ());
+  }
+
+  /**
+   *  Begin a query, and make it the current thread's current query.
+   *  @param qid The query id.
+   *  @return The query's metrics.
+   */
+  public static Query begin (String qid) {
+    Query query = new Query (qid);
+    attach (query);
+    return query;
+  }
+
+  /**
+   *  Make a query that another thread began the current thread's
+   *  current query.
+   *  @param query The query, or null.
+   */
+  public static void attach (Query query) {
+
+    if (query == null) {
+      return;
+    }
+
+    Context context = new Context ();
+    context.query = query;
+    context.allocatedAtStart = allocatedBytes ();
+    CURRENT.set (context);
+  }
+
+  /**
+   *  Stop working on the current query, and add what the current
+   *  thread allocated since it was attached.
+   */
+  public static void detach () {
+    Context context = CURRENT.get ();
+
+    if (context != null) {
+      context.query.addCounts (0, 0, 0, allocatedBytes () - context.allocatedAtStart);
+      CURRENT.remove ();
+    }
+  }
+
+  /**
+   *  Get the current thread's current query.
+   *  @return The query, or null.
+   */
+  public static Query current () {
+    Context context = CURRENT.get ();
+    return (context == null) ? null : context.query;
+  }
+
+  /**
+   *  Add the time since start to a phase of the current query.
+   *  @param phase PARSE, INITIALIZE, EVALUATE or OUTPUT.
+   *  @param start The System.nanoTime when the phase started.
+   */
+  public static void addTime (int phase, long start) {
+    Context context = CURRENT.get ();
+
+    if (context != null) {
+      context.query.addTime (phase, start);
+    }
+  }
+
+  /**
+   *  Add the postings and documents of an evaluation with dynamic
+   *  pruning to the current query.
+   *  @param postingsScored The postings that it scored.
+   *  @param documentsScored The documents that it scored.
+   */
+  public static void addPrunedEvaluation (long postingsScored,
+                                          long documentsScored) {
+    Context context = CURRENT.get ();
+
+    if (context != null) {
+      context.query.addCounts (postingsScored, 0, documentsScored, 0);
+    }
+  }
+
+  /**
+   *  Add the postings and documents of an exhaustive evaluation of a
+   *  query tree to the current query.  The postings are those of the
+   *  inverted lists of the tree's leaves; a shared subtree is counted
+   *  once.
+   *  @param q The query tree, after evaluation, or null if its lists
+   *    were counted already, e.g., by another docid range.
+   *  @param documentsScored The documents that it scored.
+   */
+  public static void addEvaluation (Qry q, long documentsScored) {
+    Context context = CURRENT.get ();
+
+    if (context != null) {
+      long postings = (q == null) ? 0 :
+        countPostings (q, new IdentityHashMap<Qry, Qry> ());
+      context.query.addCounts (0, postings, documentsScored, 0);
+    }
+  }
+
+  private static long countPostings (Qry q, Map<Qry, Qry> visited) {
+
+    if (visited.put (q, q) != null) {
+      return 0;
+    }
+
+    if (q instanceof QryIopShared) {
+      return countPostings (((QryIopShared) q).getSource (), visited);
+    } else if ((q instanceof QryIop) && (q.args.size () == 0)) {
+      return ((QryIop) q).getDf ();
+    }
+
+    long postings = 0;
+
+    for (Qry q_i : q.args) {
+      postings += countPostings (q_i, visited);
+    }
+    return postings;
+  }
+
+  /**
+   *  Record a query that is finished, including its output.
+   *  @param query The query's metrics.
+   */
+  public static synchronized void record (Query query) {
+    QUERIES.add (query);
+  }
+
+  /**
+   *  Print a summary of the recorded queries:  the total and the
+   *  percentiles of each metric.
+   */
+  public static synchronized void printSummary () {
+
+    int n = QUERIES.size ();
+
+    if (n == 0) {
+      return;
+    }
+
+    System.out.println ("Query metrics:  " + n + " queries");
+    System.out.println (String.format ("  %-18s %12s %12s %12s %12s %12s",
+                                       "", "total", "p50", "p90", "p99", "max"));
+
+    for (int phase = 0; phase < PHASES.length; phase++) {
+      long[] values = new long[n];
+
+      for (int i = 0; i < n; i++) {
+        values[i] = QUERIES.get (i).nanos[phase];
+      }
+      printRow (PHASES[phase] + " (ms)", values, 1e-6, 1);
+    }
+
+    long[] totals = new long[n];
+    long[] scored = new long[n];
+    long[] postings = new long[n];
+    long[] documents = new long[n];
+    long[] bytes = new long[n];
+
+    for (int i = 0; i < n; i++) {
+      Query query = QUERIES.get (i);
+      totals[i] = query.getTotalNanos ();
+      scored[i] = query.postingsScored;
+      postings[i] = query.postingsInLists;
+      documents[i] = query.documentsScored;
+      bytes[i] = query.allocatedBytes;
+    }
+
+    printRow ("total (ms)", totals, 1e-6, 1);
+    printRow ("postings scored", scored, 1.0, 0);
+    printRow ("postings in lists", postings, 1.0, 0);
+    printRow ("documents scored", documents, 1.0, 0);
+
+    if (THREADS != null) {
+      printRow ("allocated (MB)", bytes, 1.0 / (1024 * 1024), 1);
+    }
+  }
+
+  private static void printRow (String name, long[] values, double scale,
+                                int decimals) {
+
+    String format = " %12." + decimals + "f";
+    long total = 0;
+
+    for (long v : values) {
+      total += v;
+    }
+
+    Arrays.sort (values);
+
+    StringBuilder row = new StringBuilder (String.format ("  %-18s", name));
+
+    row.append (String.format (format, total * scale));
+
+    for (double p : PERCENTILES) {
+      row.append (String.format (format, percentile (values, p) * scale));
+    }
+
+    row.append (String.format (format, values[values.length - 1] * scale));
+    System.out.println (row);
+  }
+
+  /**
+   *  The nearest-rank percentile of sorted values.
+   */
+  private static long percentile (long[] sorted, double p) {
+    int rank = (int) Math.ceil (p / 100.0 * sorted.length);
+    return sorted[Math.max (rank, 1) - 1];
+  }
+
+  /**
+   *  Write the metrics of each recorded query, one tab-separated line
+   *  per query after a header line.  Times are in microseconds.
+   *  @param file The file.
+   *  @throws IOException Error writing the file.
+   */
+  public static synchronized void write (File file) throws IOException {
+
+    PrintWriter out = new PrintWriter (new BufferedWriter (new FileWriter (file)));
+
+    try {
+      out.print ("qid");
+
+      for (String phase : PHASES) {
+        out.print ("\t" + phase + "_us");
+      }
+
+      out.println ("\tpostings_scored\tpostings_in_lists\tdocuments_scored\tallocated_bytes");
+
+      for (Query query : QUERIES) {
+        out.print (query.qid);
+
+        for (long n : query.nanos) {
+          out.print ("\t" + (n / 1000));
+        }
+
+        out.println ("\t" + query.postingsScored + "\t" + query.postingsInLists +
+                     "\t" + query.documentsScored +
+                     "\t" + query.allocatedBytes);
+      }
+    } finally {
+      out.close ();
+    }
+  }
+}
@@ -0,0 +1,436 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+
+/**
+ *  A process-wide cache of query results (the top docids and scores),
+ *  so that repeated queries, including the initial retrieval of
+ *  relevance feedback, are not evaluated again.  The key is the
+ *  optimized query tree in a canonical form plus the retrieval model
+ *  and its parameters and the result length, so results from other
+ *  models or parameter settings never match.  Arguments are sorted
+ *  where that can't change a score:  #SYN, and #AND and #OR in the
+ *  Boolean models.  Operators that add or multiply scores keep their
+ *  order, because floating point arithmetic isn't associative.
+ *  <p>
+ *  The cache has a byte budget and evicts the least recently used
+ *  results.  Admission is by frequency:  when a new result would
+ *  evict an older one, it is cached only if its query has been asked
+ *  at least as often as the older one's.  Frequencies are halved
+ *  periodically, so old popularity fades.
+ *  </p><p>
+ *  The cache may be saved to a file at the end of a run and loaded by
+ *  the next run.  The file records the index version; a file from a
+ *  different index is ignored.  The cache is disabled until
+ *  setMaxBytes is called with a positive budget.  It is thread-safe.
+ *  </p>
+ */
+public class ResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x52455331;		// "RES1"
+
+  /**
+   *  The number of requests between halvings of the frequencies.
+   */
+  private static final int AGING_INTERVAL = 1 << 16;
+
+  /**
+   *  The estimated bytes of a result, beyond its key and entries.
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  /**
+   *  A cached result.
+   */
+  private static class Entry {
+    private int[] docids;
+    private double[] scores;
+
+    private long sizeInBytes (String key) {
+      return ENTRY_OVERHEAD + 2L * key.length () + 12L * this.docids.length;
+    }
+  }
+
+  /**
+   *  The cached results, in least-recently-used order.
+   */
+  private static LinkedHashMap<String, Entry> RESULTS =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   *  The number of times that each recent query was requested.
+   */
+  private static Map<String, Integer> FREQUENCIES =
+    new HashMap<String, Integer>();
+
+  private static volatile long maxBytes = 0;
+  private static long usedBytes = 0;
+  private static int requestsSinceAging = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long rejections = 0;
+  private static long evictions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the byte budget.  A budget of 0 disables the cache.  Results
+   *  are evicted if the cache is over the new budget.
+   *  @param bytes The maximum number of bytes of cached results.
+   */
+  public static synchronized void setMaxBytes (long bytes) {
+    ResultCache.maxBytes = Math.max (bytes, 0);
+
+    Iterator<Map.Entry<String, Entry>> it = RESULTS.entrySet ().iterator ();
+
+    while ((usedBytes > maxBytes) && it.hasNext ()) {
+      Map.Entry<String, Entry> e = it.next ();
+      usedBytes -= e.getValue ().sizeInBytes (e.getKey ());
+      it.remove ();
+      evictions ++;
+    }
+  }
+
+  /**
+   *  Returns true if the cache is enabled.
+   *  @return True if the cache has a positive byte budget.
+   */
+  public static boolean isEnabled () {
+    return (ResultCache.maxBytes > 0);
+  }
+
+  /**
+   *  The cache key of an optimized query.
+   *  @param q The optimized query.
+   *  @param r The retrieval model.
+   *  @param resultLength The number of results that are kept.
+   *  @return The key.
+   */
+  public static String getKey (Qry q, RetrievalModel r, int resultLength) {
+
+    StringBuilder key = new StringBuilder ();
+
+    key.append (r.getClass ().getName ());
+
+    if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+      key.append (' ').append (bm25.get_k1 ()).append (' ').append (bm25.get_b ())
+         .append (' ').append (bm25.get_k3 ());
+    } else if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+      key.append (' ').append (indri.get_mau ()).append (' ').append (indri.get_lambda ());
+    }
+
+    key.append (' ').append (resultLength).append (' ');
+    key.append (canonicalForm (q, r));
+    return key.toString ();
+  }
+
+  /**
+   *  The canonical form of a query tree.
+   */
+  private static String canonicalForm (Qry q, RetrievalModel r) {
+
+    if (q.args.size () == 0) {
+      return q.toString ();		// Terms and other leaves
+    }
+
+    StringBuilder form = new StringBuilder (q.getClass ().getName ());
+
+    if (q instanceof QryIop) {
+      form.append ('/').append (((QryIop) q).nearDis)
+          .append ('/').append (((QryIop) q).WindowDis);
+    } else if (! ((QrySop) q).weights.isEmpty ()) {
+      form.append (((QrySop) q).weights);
+    }
+
+    List<String> args = new ArrayList<String> ();
+
+    for (Qry q_i : q.args) {
+      args.add (canonicalForm (q_i, r));
+    }
+
+    boolean unordered = (q instanceof QryIopSyn) ||
+      (((q instanceof QrySopAnd) || (q instanceof QrySopOr)) &&
+       ((r instanceof RetrievalModelUnrankedBoolean) ||
+        (r instanceof RetrievalModelRankedBoolean)));
+
+    if (unordered) {
+      Collections.sort (args);
+    }
+
+    form.append ('(');
+
+    for (String arg : args) {
+      form.append (arg).append (' ');
+    }
+
+    return form.append (')').toString ();
+  }
+
+  /**
+   *  Get the cached result of a query, and count the request.
+   *  @param key The query's key.
+   *  @return The result, or null if it isn't cached.
+   */
+  public static synchronized ScoreList get (String key) {
+
+    Integer frequency = FREQUENCIES.get (key);
+    FREQUENCIES.put (key, (frequency == null) ? 1 : frequency + 1);
+
+    if (++requestsSinceAging >= AGING_INTERVAL) {
+      age ();
+    }
+
+    Entry entry = RESULTS.get (key);
+
+    if (entry == null) {
+      misses ++;
+      return null;
+    }
+
+    hits ++;
+
+    ScoreList result = new ScoreList ();
+
+    for (int i = 0; i < entry.docids.length; i++) {
+      result.add (entry.docids[i], entry.scores[i]);
+    }
+
+    return result;
+  }
+
+  /**
+   *  Offer the result of a query that get didn't find.  It is cached if
+   *  it fits in the budget, and if its query is asked at least as
+   *  often as the results that it would evict.
+   *  @param key The query's key.
+   *  @param result The result.
+   */
+  public static synchronized void put (String key, ScoreList result) {
+
+    if (! isEnabled () || RESULTS.containsKey (key)) {
+      return;
+    }
+
+    Entry entry = new Entry ();
+    entry.docids = new int[result.size ()];
+    entry.scores = new double[result.size ()];
+
+    for (int i = 0; i < result.size (); i++) {
+      entry.docids[i] = result.getDocid (i);
+      entry.scores[i] = result.getDocidScore (i);
+    }
+
+    long size = entry.sizeInBytes (key);
+
+    if (size > maxBytes) {
+      rejections ++;
+      return;
+    }
+
+    //  Find the victims, and check that the new result is as popular.
+
+    int frequency = frequency (key);
+    long freed = 0;
+    int victims = 0;
+
+    for (Map.Entry<String, Entry> e : RESULTS.entrySet ()) {
+      if (usedBytes - freed + size <= maxBytes) {
+        break;
+      }
+
+      if (frequency (e.getKey ()) > frequency) {
+        rejections ++;
+        return;
+      }
+
+      freed += e.getValue ().sizeInBytes (e.getKey ());
+      victims ++;
+    }
+
+    Iterator<Map.Entry<String, Entry>> it = RESULTS.entrySet ().iterator ();
+
+    for (int i = 0; i < victims; i++) {
+      Map.Entry<String, Entry> e = it.next ();
+      usedBytes -= e.getValue ().sizeInBytes (e.getKey ());
+      it.remove ();
+      evictions ++;
+    }
+
+    RESULTS.put (key, entry);
+    usedBytes += size;
+  }
+
+  private static int frequency (String key) {
+    Integer frequency = FREQUENCIES.get (key);
+    return (frequency == null) ? 0 : frequency;
+  }
+
+  /**
+   *  Halve the frequencies, and forget queries that fall to 0 and
+   *  aren't cached.
+   */
+  private static void age () {
+
+    Iterator<Map.Entry<String, Integer>> it = FREQUENCIES.entrySet ().iterator ();
+
+    while (it.hasNext ()) {
+      Map.Entry<String, Integer> e = it.next ();
+      int frequency = e.getValue () / 2;
+
+      if ((frequency == 0) && ! RESULTS.containsKey (e.getKey ())) {
+        it.remove ();
+      } else {
+        e.setValue (frequency);
+      }
+    }
+
+    requestsSinceAging = 0;
+  }
+
+  /**
+   *  Discard all cached results, for example because a different index
+   *  was opened.  The counters are not reset.
+   */
+  public static synchronized void clear () {
+    RESULTS.clear ();
+    FREQUENCIES.clear ();
+    usedBytes = 0;
+    requestsSinceAging = 0;
+  }
+
+  private static long version () {
+    return (Idx.INDEXREADER instanceof DirectoryReader) ?
+      ((DirectoryReader) Idx.INDEXREADER).getVersion () : -1;
+  }
+
+  /**
+   *  Load results that a previous run saved, if the file exists and
+   *  was written for the index that is open.  Results are admitted as
+   *  if they were new, in the order in which they were used.
+   *  @param file The cache file.
+   *  @throws IOException Error reading the file.
+   */
+  public static synchronized void load (File file) throws IOException {
+
+    if (! file.canRead ()) {
+      return;
+    }
+
+    DataInputStream in = new DataInputStream (new BufferedInputStream (
+      new FileInputStream (file)));
+
+    try {
+      if ((in.readInt () != MAGIC) ||
+          (in.readInt () != Idx.INDEXREADER.maxDoc ()) ||
+          (in.readLong () != version ())) {
+        return;
+      }
+
+      int n = in.readInt ();
+
+      for (int i = 0; i < n; i++) {
+        byte[] keyBytes = new byte[in.readInt ()];
+        in.readFully (keyBytes);
+
+        String key = new String (keyBytes, "UTF-8");
+        int frequency = in.readInt ();
+        int size = in.readInt ();
+        ScoreList result = new ScoreList ();
+
+        for (int j = 0; j < size; j++) {
+          int docid = in.readInt ();
+          result.add (docid, in.readDouble ());
+        }
+
+        FREQUENCIES.put (key, frequency);
+        put (key, result);
+      }
+    } finally {
+      in.close ();
+    }
+  }
+
+  /**
+   *  Save the cached results and their frequencies.
+   *  @param file The cache file.
+   *  @throws IOException Error writing the file.
+   */
+  public static synchronized void save (File file) throws IOException {
+
+    File tmp = new File (file.getPath () + ".tmp");
+    DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (tmp)));
+
+    try {
+      out.writeInt (MAGIC);
+      out.writeInt (Idx.INDEXREADER.maxDoc ());
+      out.writeLong (version ());
+      out.writeInt (RESULTS.size ());
+
+      for (Map.Entry<String, Entry> e : RESULTS.entrySet ()) {
+        byte[] keyBytes = e.getKey ().getBytes ("UTF-8");
+        Entry entry = e.getValue ();
+
+        out.writeInt (keyBytes.length);
+        out.write (keyBytes);
+        out.writeInt (frequency (e.getKey ()));
+        out.writeInt (entry.docids.length);
+
+        for (int i = 0; i < entry.docids.length; i++) {
+          out.writeInt (entry.docids[i]);
+          out.writeDouble (entry.scores[i]);
+        }
+      }
+    } finally {
+      out.close ();
+    }
+
+    if (! tmp.renameTo (file)) {
+      tmp.delete ();
+      throw new IOException ("Unable to write " + file);
+    }
+  }
+
+  public static synchronized long getHits () {
+    return hits;
+  }
+
+  public static synchronized long getMisses () {
+    return misses;
+  }
+
+  public static synchronized long getRejections () {
+    return rejections;
+  }
+
+  public static synchronized long getEvictions () {
+    return evictions;
+  }
+
+  public static synchronized long getUsedBytes () {
+    return usedBytes;
+  }
+
+  /**
+   *  Print the cache counters.  This is handy for tuning the budget.
+   */
+  public static synchronized void printStats () {
+    long lookups = hits + misses;
+    System.out.println ("Result cache:  " + hits + " hits, " + misses +
+                        " misses, " + rejections + " rejections, " +
+                        evictions + " evictions, " +
+                        RESULTS.size () + " results, " +
+                        usedBytes + " of " + maxBytes + " bytes" +
+                        ((lookups > 0) ?
+                         String.format (", hit rate %.1f%%", 100.0 * hits / lookups) : ""));
+  }
+}
@@ -11,7 +11,8 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external id is looked up the first time that it is
+  //  needed, so entries that are truncated away never pay for it.
 
   private class ScoreListEntry {
     private int docid;
@@ -21,13 +22,18 @@ public class ScoreList {
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+    }
 
-      try {
-    	  this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-    	  ex.printStackTrace();
+    private String getExternalId() {
+      if (this.externalId == null) {
+        try {
+          this.externalId = Idx.getExternalDocid (this.docid);
+        }
+        catch (IOException ex){
+          ex.printStackTrace();
+        }
       }
+      return this.externalId;
     }
   }
 
@@ -54,8 +60,13 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
   public String getExternalDocid(int n) {
-	    return this.scores.get(n).externalId;
+	    return this.scores.get(n).getExternalId();
   }
   /**
    *  Get the score of the n'th entry.
@@ -99,8 +110,8 @@ public class ScoreList {
 	if (s1.score < s2.score)
 	  return 1;
 	else {
-		String externalId1 = s1.externalId;
-		String externalId2 = s2.externalId;
+		String externalId1 = s1.getExternalId();
+		String externalId2 = s2.getExternalId();
 		
 		if (externalId1.compareTo(externalId2) > 0)
 			return 1;
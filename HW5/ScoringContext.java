@@ -0,0 +1,207 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  The document-independent values that a #SCORE operator needs to
+ *  score its argument:  idf, average length and the length
+ *  normalizers for BM25, and the collection prior and smoothing
+ *  constants for Indri.  A context is built once, when the operator
+ *  is initialized, so scoring a document takes a few arithmetic
+ *  operations instead of index statistics lookups and logarithms.
+ *  <p>
+ *  The constants are combined in the same order as the formulas in
+ *  QrySopScore, so scores are bit-for-bit the same as computing them
+ *  from scratch.  The BM25 normalizer k_1*((1-b)+b*length/avgLength)
+ *  depends only on the field length, so it is tabulated by length
+ *  for each field, k_1 and b, and shared by all terms and queries
+ *  (and threads; the tables are built under a lock).
+ *  </p>
+ */
+public class ScoringContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Fields whose longest document is longer than this don't get a
+   *  normalizer table; the normalizer is computed per document.
+   */
+  private static final int MAX_TABLE_LENGTH = 1 << 22;
+
+  /**
+   *  BM25 normalizer tables, keyed by field, k_1 and b.
+   */
+  private static Map<String, double[]> LENGTH_NORMS =
+    new HashMap<String, double[]>();
+
+  private int[] docLengths;
+
+  //  BM25
+
+  private double idf;
+  private double averageLength;
+  private double k_1;
+  private double b;
+  private double[] lengthNorms;
+
+  //  Indri
+
+  private double prior;
+  private double mu;
+  private double lambda;
+  private double oneMinusLambda;	// 1-lambda
+  private double muPrior;		// mu*prior
+  private double lambdaPrior;		// lambda*prior
+  private double defaultNumerator;	// (1-lambda)*mu*prior
+
+  //  --------------- Methods ---------------------------------------
+
+  private ScoringContext (QryIop q_inv) {
+    this.docLengths = Idx.getFieldLengths (q_inv.getField ());
+  }
+
+  /**
+   *  Build the context for an initialized argument of #SCORE.
+   *  @param q_inv The argument.
+   *  @param r The retrieval model.
+   *  @return The context, or null if the model has no constants.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoringContext create (QryIop q_inv, RetrievalModel r)
+    throws IOException {
+
+    if (r instanceof RetrievalModelBM25) {
+      return forBM25 (q_inv, (RetrievalModelBM25) r);
+    } else if (r instanceof RetrievalModelIndri) {
+      return forIndri (q_inv, (RetrievalModelIndri) r);
+    } else {
+      return null;
+    }
+  }
+
+  private static ScoringContext forBM25 (QryIop q_inv, RetrievalModelBM25 r)
+    throws IOException {
+
+    ScoringContext c = new ScoringContext (q_inv);
+    String field = q_inv.getField ();
+    double df = (double) q_inv.getDf ();
+    double num_docs = (double) Idx.getDocCount (field);
+    double tot_len = (double) Idx.getSumOfFieldLengths (field);
+
+    c.idf = QrySopScore.getIdfBM25 (num_docs, df);
+    c.averageLength = tot_len / num_docs;
+    c.k_1 = r.get_k1 ();
+    c.b = r.get_b ();
+    c.lengthNorms = lengthNorms (field, c.docLengths, c.averageLength, c.k_1, c.b);
+    return c;
+  }
+
+  private static ScoringContext forIndri (QryIop q_inv, RetrievalModelIndri r)
+    throws IOException {
+
+    ScoringContext c = new ScoringContext (q_inv);
+    double ctf = (double) q_inv.getCtf ();
+    double tot_len = (double) Idx.getSumOfFieldLengths (q_inv.getField ());
+
+    c.prior = ctf / tot_len;
+    c.mu = r.get_mau ();
+    c.lambda = r.get_lambda ();
+    c.oneMinusLambda = 1 - c.lambda;
+    c.muPrior = c.mu * c.prior;
+    c.lambdaPrior = c.lambda * c.prior;
+    c.defaultNumerator = (1 - c.lambda) * c.mu * c.prior;
+    return c;
+  }
+
+  /**
+   *  Get (or build) the BM25 normalizer table of a field.
+   *  @return The table, indexed by length, or null if it is too big.
+   */
+  private static synchronized double[] lengthNorms (String field, int[] docLengths,
+                                                    double average_len, double k_1,
+                                                    double b) {
+
+    String key = field + '\t' + k_1 + '\t' + b;
+    double[] norms = LENGTH_NORMS.get (key);
+
+    if ((norms == null) && ! LENGTH_NORMS.containsKey (key)) {
+      int maxLength = 0;
+
+      for (int length : docLengths) {
+        maxLength = Math.max (maxLength, length);
+      }
+
+      if (maxLength < MAX_TABLE_LENGTH) {
+        norms = new double[maxLength + 1];
+
+        for (int length = 0; length <= maxLength; length++) {
+          double doc_length = (double) length;
+          norms[length] = k_1*((1-b) + (b*doc_length/average_len));
+        }
+      }
+
+      LENGTH_NORMS.put (key, norms);
+    }
+
+    return norms;
+  }
+
+  /**
+   *  Discard the normalizer tables, for example because a different
+   *  index was opened.
+   */
+  public static synchronized void clear () {
+    LENGTH_NORMS.clear ();
+  }
+
+  /**
+   *  @return The BM25 idf of the term.
+   */
+  public double getIdf () {
+    return this.idf;
+  }
+
+  /**
+   *  The BM25 score of a document.
+   *  @param tf The term frequency in the document.
+   *  @param docid The internal docid.
+   *  @return The score.
+   */
+  public double scoreBM25 (double tf, int docid) {
+
+    int length = this.docLengths[docid];
+    double tf_weight;
+
+    if (this.lengthNorms != null) {
+      tf_weight = tf/(tf + this.lengthNorms[length]);
+    } else {
+      tf_weight = QrySopScore.getTfWeightBM25 (tf, (double) length,
+                                               this.averageLength, this.k_1, this.b);
+    }
+
+    return this.idf*tf_weight;
+  }
+
+  /**
+   *  The Indri score of a document that contains the term.
+   *  @param tf The term frequency in the document.
+   *  @param docid The internal docid.
+   *  @return The score.
+   */
+  public double scoreIndri (double tf, int docid) {
+    double doc_length = (double) this.docLengths[docid];
+    return this.oneMinusLambda*(tf+this.muPrior)/(doc_length + this.mu) + this.lambdaPrior;
+  }
+
+  /**
+   *  The Indri score of a document that doesn't contain the term.
+   *  @param docid The internal docid.
+   *  @return The score.
+   */
+  public double defaultScoreIndri (int docid) {
+    double doc_length = (double) this.docLengths[docid];
+    return this.defaultNumerator/(doc_length + this.mu) + this.lambdaPrior;
+  }
+}
@@ -0,0 +1,260 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Collects the k best documents from a stream of (docid, score)
+ *  pairs.  The documents are kept in a bounded min-heap whose root is
+ *  the worst document collected so far, so collecting n documents
+ *  costs O(n log k) time and O(k) memory.  The heap is stored in
+ *  parallel arrays, so no object is created per candidate.
+ *  <p>
+ *  Documents are ranked the same way as ScoreList.sort:  by score,
+ *  then by external id.  External ids are compared only when two
+ *  scores are equal.
+ *  </p><p>
+ *  Collectors that evaluate different docid ranges of one query may
+ *  share a Threshold.  A full collector raises it to its worst score,
+ *  and every collector sharing it rejects bounds below it, so pruning
+ *  in one range benefits from good documents found in the others.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final double COMPETE_SLACK = 1e-9;
+
+  /**
+   *  A lower bound on the score of the k'th document of a query,
+   *  shared by the collectors of its docid ranges.  Each of them has
+   *  seen k documents that score at least this much, so a document
+   *  that scores less can't be in the top k of the whole query.
+   */
+  public static class Threshold {
+
+    private final AtomicLong bits =
+      new AtomicLong (Double.doubleToLongBits (Double.NEGATIVE_INFINITY));
+
+    /**
+     *  @return The threshold.
+     */
+    public double get () {
+      return Double.longBitsToDouble (this.bits.get ());
+    }
+
+    /**
+     *  Raise the threshold to score, if score is greater.
+     *  @param score The k'th best score of a collector.
+     */
+    public void raise (double score) {
+      long current = this.bits.get ();
+
+      while ((score > Double.longBitsToDouble (current)) &&
+             ! this.bits.compareAndSet (current, Double.doubleToLongBits (score))) {
+        current = this.bits.get ();
+      }
+    }
+  }
+
+  private int k;
+  private int size = 0;
+  private int[] docids;
+  private double[] scores;
+  private Threshold threshold;
+  private long offered = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The number of documents to keep.
+   */
+  public TopKCollector (int k) {
+    this (k, null);
+  }
+
+  /**
+   *  @param k The number of documents to keep.
+   *  @param threshold A threshold shared with the collectors of the
+   *    query's other docid ranges, or null.
+   */
+  public TopKCollector (int k, Threshold threshold) {
+
+    if (k < 0) {
+      throw new IllegalArgumentException ("k must be non-negative: " + k);
+    }
+
+    this.k = k;
+    this.docids = new int[k];
+    this.scores = new double[k];
+    this.threshold = threshold;
+  }
+
+  /**
+   *  Offer a document to the collector.  It is kept if it is one of
+   *  the k best documents seen so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   */
+  public void collect (int docid, double score) {
+
+    this.offered ++;
+
+    if (this.size < this.k) {
+      this.docids[this.size] = docid;
+      this.scores[this.size] = score;
+      this.siftUp (this.size ++);
+    } else if ((this.k > 0) &&
+               ! (score < this.scores[0]) &&
+               worse (this.docids[0], this.scores[0], docid, score)) {
+      this.docids[0] = docid;
+      this.scores[0] = score;
+      this.siftDown (0);
+    } else {
+      return;
+    }
+
+    if ((this.threshold != null) && (this.size == this.k)) {
+      this.threshold.raise (this.scores[0]);
+    }
+  }
+
+  /**
+   *  Returns true if a document whose score is at most bound could
+   *  still be collected.  Query evaluators use this to skip documents
+   *  that can't enter the top k.  A document that ties the worst
+   *  collected score (or the shared threshold) may still win on
+   *  external id, so ties compete.
+   *  The bound is given a little slack, because an upper bound that
+   *  is summed in a different order than the score may be rounded
+   *  differently.
+   *  @param bound An upper bound on a document's score.
+   *  @return False if no document with that bound can be collected.
+   */
+  public boolean canCompete (double bound) {
+
+    if ((this.threshold != null) &&
+        (bound + COMPETE_SLACK * Math.abs (bound) < this.threshold.get ())) {
+      return false;
+    } else if (this.size < this.k) {
+      return true;
+    } else if (this.k == 0) {
+      return false;
+    } else {
+      return ! (bound + COMPETE_SLACK * Math.abs (bound) < this.scores[0]);
+    }
+  }
+
+  /**
+   *  Get the number of documents collected.
+   *  @return A number between 0 and k.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the number of documents offered to the collector, i.e., the
+   *  number of documents that were scored.
+   *  @return The number of collect calls.
+   */
+  public long getOffered () {
+    return this.offered;
+  }
+
+  /**
+   *  Empty the heap into a score list, best document first.  The
+   *  collector is empty afterwards.
+   *  @return The collected documents in rank order.
+   */
+  public ScoreList getScoreList () {
+
+    int n = this.size;
+    int[] rankedDocids = new int[n];
+    double[] rankedScores = new double[n];
+
+    //  Removing the root repeatedly yields the documents worst first.
+
+    for (int i = n - 1; i >= 0; i--) {
+      rankedDocids[i] = this.docids[0];
+      rankedScores[i] = this.scores[0];
+      this.size --;
+      this.docids[0] = this.docids[this.size];
+      this.scores[0] = this.scores[this.size];
+      this.siftDown (0);
+    }
+
+    ScoreList r = new ScoreList ();
+
+    for (int i = 0; i < n; i++) {
+      r.add (rankedDocids[i], rankedScores[i]);
+    }
+    return r;
+  }
+
+  /**
+   *  Returns true if document 1 ranks below document 2.  Scores that
+   *  are neither less nor greater (e.g. NaN) tie, as in ScoreList.
+   */
+  private static boolean worse (int docid1, double score1,
+                                int docid2, double score2) {
+    if (score1 < score2) {
+      return true;
+    } else if (score1 > score2) {
+      return false;
+    } else {
+      return Idx.compareExternalDocids (docid1, docid2) > 0;
+    }
+  }
+
+  private void siftUp (int i) {
+    int docid = this.docids[i];
+    double score = this.scores[i];
+
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! worse (docid, score, this.docids[parent], this.scores[parent])) {
+        break;
+      }
+
+      this.docids[i] = this.docids[parent];
+      this.scores[i] = this.scores[parent];
+      i = parent;
+    }
+
+    this.docids[i] = docid;
+    this.scores[i] = score;
+  }
+
+  private void siftDown (int i) {
+    int docid = this.docids[i];
+    double score = this.scores[i];
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size) {
+        break;
+      }
+
+      if ((child + 1 < this.size) &&
+          worse (this.docids[child + 1], this.scores[child + 1],
+                 this.docids[child], this.scores[child])) {
+        child ++;
+      }
+
+      if (! worse (this.docids[child], this.scores[child], docid, score)) {
+        break;
+      }
+
+      this.docids[i] = this.docids[child];
+      this.scores[i] = this.scores[child];
+      i = child;
+    }
+
+    this.docids[i] = docid;
+    this.scores[i] = score;
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Benchmarks of interpreted query evaluation (walking the Qry tree)
+ *  and CompiledQuery, for BM25 #SUM, Indri #AND, and Ranked Boolean
+ *  #OR and #AND.  Each call evaluates a fixed set of random
+ *  bag-of-words queries over common terms of the synthetic index.
+ *  Setup checks that both ways give identical results.  Lists are
+ *  read from the cache, so the benchmarks measure scoring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompiledQueryBenchmark {
+
+  private static final int NUM_QUERIES = 20;
+  private static final int QUERY_LENGTH = 4;
+
+  /**
+   *  Query terms are chosen from this many of the most frequent terms.
+   */
+  private static final int COMMON_TERMS = 50;
+
+  @Param({ "BM25 #SUM", "Indri #AND", "RankedBoolean #OR", "RankedBoolean #AND" })
+  public String query;
+
+  private String op;
+  private RetrievalModel model;
+  private String[][] queries = new String[NUM_QUERIES][QUERY_LENGTH];
+
+  @Setup(Level.Trial)
+  public void setup () throws IOException {
+    SyntheticIndex.open ();
+    InvListCache.setMaxBytes (Long.MAX_VALUE);
+
+    String name = this.query.substring (0, this.query.indexOf (' '));
+
+    this.op = this.query.substring (this.query.indexOf (' ') + 1);
+    this.model =
+      name.equals ("BM25") ? new RetrievalModelBM25 (1.2, 0.75, 0.0) :
+      name.equals ("Indri") ? new RetrievalModelIndri (0.4, 2500.0) :
+      new RetrievalModelRankedBoolean ();
+
+    Random random = new Random (7041);
+
+    for (String[] terms : this.queries) {
+      for (int j = 0; j < QUERY_LENGTH; j++) {
+        terms[j] = SyntheticIndex.term (random.nextInt (COMMON_TERMS));
+      }
+    }
+
+    for (String[] terms : this.queries) {
+      if (! sameResults (evaluate (terms, false), evaluate (terms, true))) {
+        throw new IllegalStateException
+          (this.query + " results differ for " + Arrays.toString (terms));
+      }
+    }
+  }
+
+  @Benchmark
+  public int interpreted () throws IOException {
+    int n = 0;
+
+    for (String[] terms : this.queries) {
+      n += this.evaluate (terms, false).size ();
+    }
+    return n;
+  }
+
+  @Benchmark
+  public int compiled () throws IOException {
+    int n = 0;
+
+    for (String[] terms : this.queries) {
+      n += this.evaluate (terms, true).size ();
+    }
+    return n;
+  }
+
+  /**
+   *  Build op(#SCORE(t1) ... #SCORE(tn)).
+   */
+  private Qry buildQuery (String[] terms) {
+
+    QrySop q = this.op.equals ("#SUM") ? new QrySopSum () :
+               this.op.equals ("#OR") ? new QrySopOr () : new QrySopAnd ();
+    q.setDisplayName (this.op);
+
+    for (String t : terms) {
+      QryIopTerm term = new QryIopTerm (t, "body");
+      term.setFrequencyOnly (true);
+
+      QrySopScore score = new QrySopScore ();
+      score.setDisplayName ("#SCORE");
+      score.appendArg (term);
+      q.appendArg (score);
+    }
+    return q;
+  }
+
+  /**
+   *  Evaluate a query the way QryEval.processQuery does.
+   */
+  private ScoreList evaluate (String[] terms, boolean compile)
+    throws IOException {
+
+    Qry q = this.buildQuery (terms);
+    TopKCollector topK = new TopKCollector (100);
+
+    q.initialize (this.model);
+
+    if (compile) {
+      CompiledQuery.compile (q, this.model).evaluate (topK);
+    } else {
+      while (q.docIteratorHasMatch (this.model)) {
+        int docid = q.docIteratorGetMatch ();
+        topK.collect (docid, ((QrySop) q).getScore (this.model));
+        q.docIteratorAdvancePast (docid);
+      }
+    }
+    return topK.getScoreList ();
+  }
+
+  private static boolean sameResults (ScoreList a, ScoreList b) {
+
+    if (a.size () != b.size ()) {
+      return false;
+    }
+
+    for (int i = 0; i < a.size (); i++) {
+      if ((a.getDocid (i) != b.getDocid (i)) ||
+          (Double.compare (a.getDocidScore (i), b.getDocidScore (i)) != 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
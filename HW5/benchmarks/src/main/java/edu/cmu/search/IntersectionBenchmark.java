@@ -0,0 +1,130 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Benchmarks of skewed intersections:  a rare term and a very common
+ *  term in #AND or #NEAR/1.  They compare the galloping docIterator
+ *  in QryIop with a docIterator that steps forward one posting at a
+ *  time, which is how QryIop used to work.  The inverted lists are
+ *  synthetic, so no index is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntersectionBenchmark {
+
+  /**
+   *  A PrebuiltList whose docIterator steps forward one posting at a
+   *  time.  This is the baseline.
+   */
+  static class LinearList extends PrebuiltList {
+
+    public LinearList (InvList list) {
+      super (list);
+    }
+
+    public void docIteratorAdvancePast (int docid) {
+      while ((this.getDocIdx () < this.invertedList.df) &&
+             (this.invertedList.getDocid (this.getDocIdx ()) <= docid)) {
+        this.IncdocIterator ();
+      }
+      this.setlocIterator ();
+    }
+
+    public void docIteratorAdvanceTo (int docid) {
+      while ((this.getDocIdx () < this.invertedList.df) &&
+             (this.invertedList.getDocid (this.getDocIdx ()) < docid)) {
+        this.IncdocIterator ();
+      }
+      this.setlocIterator ();
+    }
+  }
+
+  @Param({ "1000000" })
+  public int longDf;
+
+  @Param({ "200" })
+  public int shortDf;
+
+  @Param({ "linear", "galloping" })
+  public String iterator;
+
+  private InvList longList;
+  private InvList shortList;
+  private RetrievalModel model = new RetrievalModelRankedBoolean ();
+
+  /**
+   *  The common term occurs in almost every document at location 10.
+   *  The rare term occurs at location 11 in a random sample of those
+   *  documents, so every rare document matches #NEAR/1.
+   */
+  @Setup(Level.Trial)
+  public void setup () {
+    Random random = new Random (7041);
+    int numDocs = this.longDf + this.longDf / 10;
+    int[] loc = new int[1];
+
+    this.longList = new InvList ("body");
+    this.shortList = new InvList ("body");
+
+    for (int docid = 0, n = 0; (docid < numDocs) && (n < this.longDf); docid++) {
+      if (random.nextInt (11) != 0) {
+        loc[0] = 10;
+        this.longList.appendPosting (docid, loc, 1);
+        n ++;
+
+        if (random.nextInt (this.longDf) < this.shortDf) {
+          loc[0] = 11;
+          this.shortList.appendPosting (docid, loc, 1);
+        }
+      }
+    }
+
+    this.longList.buildSkipTable ();
+    this.shortList.buildSkipTable ();
+  }
+
+  private QryIop list (InvList list) {
+    return this.iterator.equals ("linear") ?
+      new LinearList (list) : new PrebuiltList (list);
+  }
+
+  @Benchmark
+  public int and () throws IOException {
+    QrySopAnd q = new QrySopAnd ();
+    q.setDisplayName ("#AND");
+    q.appendArg (this.list (this.shortList));
+    q.appendArg (this.list (this.longList));
+    q.initialize (this.model);
+
+    int matches = 0;
+
+    while (q.docIteratorHasMatch (this.model)) {
+      matches++;
+      q.docIteratorAdvancePast (q.docIteratorGetMatch ());
+    }
+    return matches;
+  }
+
+  @Benchmark
+  public int near () throws IOException {
+    QryIopNear q = new QryIopNear ();
+    q.setDisplayName ("#NEAR/1");
+    q.nearDis = 1;
+    q.appendArg (this.list (this.longList));
+    q.appendArg (this.list (this.shortList));
+    q.initialize (null);
+    return q.getDf ();
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Benchmarks of inverted lists:  reading a list from the index
+ *  (InvList construction, with and without positions), skipping
+ *  through a list with QryIop.docIteratorAdvanceTo, and intersecting
+ *  two lists with Qry.docIteratorHasMatchAll, as #AND does in the
+ *  Boolean models.  The term's frequency rank is a parameter; the
+ *  intersection is with the most frequent term.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostingsBenchmark {
+
+  /**
+   *  The number of docIteratorAdvanceTo targets, spread evenly over
+   *  the docid space.
+   */
+  private static final int NUM_TARGETS = 1000;
+
+  @Param({ "1", "20", "200" })
+  public int rank;
+
+  private String term;
+  private InvList list;
+  private InvList commonList;
+  private int[] targets = new int[NUM_TARGETS];
+  private RetrievalModel model = new RetrievalModelUnrankedBoolean ();
+
+  @Setup(Level.Trial)
+  public void setup () throws IOException {
+    SyntheticIndex.open ();
+
+    this.term = SyntheticIndex.term (this.rank);
+    this.list = new InvList (this.term, "body", true);
+    this.commonList = new InvList (SyntheticIndex.term (0), "body", true);
+
+    for (int i = 0; i < NUM_TARGETS; i++) {
+      this.targets[i] = (int) ((long) SyntheticIndex.NUM_DOCS * i / NUM_TARGETS);
+    }
+  }
+
+  @Benchmark
+  public InvList invListConstruction () throws IOException {
+    return new InvList (this.term, "body", true);
+  }
+
+  @Benchmark
+  public InvList invListConstructionFrequencyOnly () throws IOException {
+    return new InvList (this.term, "body", false);
+  }
+
+  @Benchmark
+  public long docIteratorAdvanceTo () throws IOException {
+    QryIop q = new PrebuiltList (this.list);
+    long sum = 0;
+
+    q.initialize (this.model);
+
+    for (int target : this.targets) {
+      q.docIteratorAdvanceTo (target);
+
+      if (! q.docIteratorHasMatch (this.model)) {
+        break;
+      }
+      sum += q.docIteratorGetMatch ();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int docIteratorHasMatchAll () throws IOException {
+    QrySopAnd q = new QrySopAnd ();
+    q.appendArg (score (this.commonList));
+    q.appendArg (score (this.list));
+    q.initialize (this.model);
+
+    int matches = 0;
+
+    while (q.docIteratorHasMatchAll (this.model)) {
+      matches++;
+      q.docIteratorAdvancePast (q.docIteratorGetMatch ());
+    }
+    return matches;
+  }
+
+  /**
+   *  #SCORE over a prebuilt list.
+   */
+  static QrySopScore score (InvList list) {
+    QrySopScore q = new QrySopScore ();
+    q.setDisplayName ("#SCORE");
+    q.appendArg (new PrebuiltList (list));
+    return q;
+  }
+}
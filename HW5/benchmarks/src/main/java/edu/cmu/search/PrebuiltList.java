@@ -0,0 +1,27 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+
+/**
+ *  A QryIop that iterates over an inverted list that was read before
+ *  the benchmark started, so that benchmarks of iteration and scoring
+ *  don't measure reading the index.  Initializing it only resets its
+ *  iterators.
+ */
+public class PrebuiltList extends QryIop {
+
+  /**
+   *  @param list The inverted list.  It is not modified.
+   */
+  public PrebuiltList (InvList list) {
+    this.invertedList = list;
+    this.field = list.field;
+    this.setDisplayName (list.field);
+  }
+
+  protected void evaluate () throws IOException {
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Benchmarks of #NEAR/n and #WINDOW/n over two terms.  A proximity
+ *  operator is lazy, so it is benchmarked two ways:  iterating over
+ *  the documents that it matches, and materializing its inverted list
+ *  (which is what getDf and getCtf do for BM25 and Indri).  The
+ *  arguments' lists are read before the benchmark starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProximityBenchmark {
+
+  @Param({ "#NEAR", "#WINDOW" })
+  public String operator;
+
+  @Param({ "1", "8" })
+  public int distance;
+
+  private InvList a;
+  private InvList b;
+
+  @Setup(Level.Trial)
+  public void setup () throws IOException {
+    SyntheticIndex.open ();
+
+    this.a = new InvList (SyntheticIndex.term (1), "body", true);
+    this.b = new InvList (SyntheticIndex.term (5), "body", true);
+  }
+
+  private QryIop build () throws IOException {
+    QryIop q;
+
+    if (this.operator.equals ("#NEAR")) {
+      q = new QryIopNear ();
+      q.nearDis = this.distance;
+    } else {
+      q = new QryIopWindow ();
+      q.WindowDis = this.distance;
+    }
+
+    q.setDisplayName (this.operator + "/" + this.distance);
+    q.appendArg (new PrebuiltList (this.a));
+    q.appendArg (new PrebuiltList (this.b));
+    q.initialize (null);
+    return q;
+  }
+
+  @Benchmark
+  public int iterate () throws IOException {
+    QryIop q = this.build ();
+    int matches = 0;
+
+    while (q.docIteratorHasMatch (null)) {
+      matches++;
+      q.docIteratorAdvancePast (q.docIteratorGetMatch ());
+    }
+    return matches;
+  }
+
+  @Benchmark
+  public int materialize () throws IOException {
+    return this.build ().getCtf ();
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  A benchmark of query parsing:  QryEval.parseQuery, which includes
+ *  lexical processing, on a structured query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParseBenchmark {
+
+  private RetrievalModel model = new RetrievalModelIndri (0.4, 2500.0);
+  private String query;
+
+  @Setup(Level.Trial)
+  public void setup () throws IOException {
+    SyntheticIndex.open ();
+
+    this.query =
+      "#AND( " + SyntheticIndex.term (3) + " #NEAR/2( " + SyntheticIndex.term (1) +
+      " " + SyntheticIndex.term (7) + " ) #WAND( 0.7 " + SyntheticIndex.term (20) +
+      ".title 0.3 #SYN( " + SyntheticIndex.term (40) + " " + SyntheticIndex.term (41) +
+      " ) ) #WINDOW/8( " + SyntheticIndex.term (2) + " " + SyntheticIndex.term (9) + " ) )";
+  }
+
+  @Benchmark
+  public Qry parseQuery () throws IOException {
+    return QryEval.parseQuery (this.query, this.model);
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  A benchmark of sorting a result list:  ScoreList.sort, which
+ *  compares external ids when scores tie.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoreListBenchmark {
+
+  @Param({ "1000", "100000" })
+  public int size;
+
+  private ScoreList results;
+
+  @Setup(Level.Trial)
+  public void setup () throws IOException {
+    SyntheticIndex.open ();
+  }
+
+  /**
+   *  A new unsorted list for each call of sort, because sorting is in
+   *  place.  Scores are rounded, so many of them tie.
+   */
+  @Setup(Level.Invocation)
+  public void unsortedResults () {
+    Random random = new Random (this.size);
+
+    this.results = new ScoreList ();
+
+    for (int i = 0; i < this.size; i++) {
+      this.results.add (random.nextInt (SyntheticIndex.NUM_DOCS),
+                        Math.rint (random.nextDouble () * 100.0) / 10.0);
+    }
+  }
+
+  @Benchmark
+  public ScoreList sort () {
+    this.results.sort ();
+    return this.results;
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *  Benchmarks of QrySopScore:  the BM25 or Indri score of every
+ *  document in a term's inverted list.  The list is read before the
+ *  benchmark starts, so only scoring (and iteration) is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoringBenchmark {
+
+  @Param({ "BM25", "Indri" })
+  public String modelName;
+
+  @Param({ "1", "20" })
+  public int rank;
+
+  private RetrievalModel model;
+  private InvList list;
+
+  @Setup(Level.Trial)
+  public void setup () throws IOException {
+    SyntheticIndex.open ();
+
+    this.model = this.modelName.equals ("BM25") ?
+      new RetrievalModelBM25 (1.2, 0.75, 0.0) :
+      new RetrievalModelIndri (0.4, 2500.0);
+    this.list = new InvList (SyntheticIndex.term (this.rank), "body", false);
+  }
+
+  @Benchmark
+  public double getScore () throws IOException {
+    QrySopScore q = PostingsBenchmark.score (this.list);
+    double sum = 0.0;
+
+    q.initialize (this.model);
+
+    while (q.docIteratorHasMatch (this.model)) {
+      sum += q.getScore (this.model);
+      q.docIteratorAdvancePast (q.docIteratorGetMatch ());
+    }
+    return sum;
+  }
+}
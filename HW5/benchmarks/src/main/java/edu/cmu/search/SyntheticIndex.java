@@ -0,0 +1,141 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+package edu.cmu.search;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ *  A small synthetic index for the benchmarks.  It is built in a
+ *  temporary directory the first time that it is opened in a JVM
+ *  (JMH forks a JVM for each benchmark), with the analyzer and
+ *  similarity that the search engine expects, and opened with
+ *  Idx.initialize.  The directory is deleted when the JVM exits.
+ *  The documents are random, but the random generator has a fixed
+ *  seed, so every run benchmarks the same index.
+ *  <p>
+ *  Term frequencies are skewed (roughly Zipfian), so term(0) occurs
+ *  in nearly every document and term(VOCABULARY_SIZE - 1) is rare.
+ *  Terms are made of letters and digits that the analyzer leaves
+ *  unchanged, e.g., "wqx" and "w3x".
+ *  </p>
+ */
+public class SyntheticIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int NUM_DOCS = 20000;
+  public static final int VOCABULARY_SIZE = 400;
+
+  private static final String[] FIELDS = { "body", "title", "url", "inlink" };
+  private static final long SEED = 42;
+
+  private static File directory = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get a term of the vocabulary.
+   *  @param rank The term's frequency rank, from 0 (most frequent).
+   *  @return The term.
+   */
+  public static String term (int rank) {
+    return "w" + Integer.toString (rank, 26).replace ('0', 'q') + "x";
+  }
+
+  /**
+   *  Build the index if this JVM hasn't, and open it.  The query
+   *  analyzer is configured too, so queries can be parsed.
+   *  @throws IOException Error building or opening the index.
+   */
+  public static synchronized void open () throws IOException {
+
+    if (directory == null) {
+      File dir = File.createTempFile ("synthetic", ".idx");
+
+      if (! dir.delete () || ! dir.mkdir ()) {
+        throw new IOException ("Unable to create " + dir);
+      }
+
+      build (dir);
+      directory = dir;
+
+      Runtime.getRuntime ().addShutdownHook (new Thread () {
+        public void run () {
+          delete (directory);
+        }
+      });
+    }
+
+    Idx.initialize (directory.getPath ());
+    QryEval.initializeAnalyzer ();
+  }
+
+  private static void delete (File file) {
+    File[] files = file.listFiles ();
+
+    if (files != null) {
+      for (File f : files) {
+        delete (f);
+      }
+    }
+    file.delete ();
+  }
+
+  /**
+   *  Write the documents.
+   */
+  private static void build (File dir) throws IOException {
+
+    EnglishAnalyzerConfigurable analyzer =
+      new EnglishAnalyzerConfigurable (Version.LUCENE_43);
+    analyzer.setLowercase (true);
+    analyzer.setStopwordRemoval (true);
+    analyzer.setStemmer (EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+
+    IndexWriterConfig config = new IndexWriterConfig (Version.LUCENE_43, analyzer);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+
+    FieldType textType = new FieldType (TextField.TYPE_STORED);
+    textType.setStoreTermVectors (true);
+    textType.setStoreTermVectorPositions (true);
+    textType.freeze ();
+
+    IndexWriter writer = new IndexWriter (FSDirectory.open (dir), config);
+    Random random = new Random (SEED);
+
+    try {
+      for (int d = 0; d < NUM_DOCS; d++) {
+        org.apache.lucene.document.Document doc =
+          new org.apache.lucene.document.Document ();
+
+        doc.add (new StringField ("externalId", String.format ("doc-%06d", d),
+                                  Field.Store.YES));
+
+        for (String field : FIELDS) {
+          int length = field.equals ("body") ? 20 + random.nextInt (200) :
+                                               random.nextInt (12);
+          StringBuilder text = new StringBuilder ();
+
+          for (int i = 0; i < length; i++) {
+            double u = random.nextDouble ();
+            text.append (term ((int) (u * u * u * VOCABULARY_SIZE))).append (' ');
+          }
+
+          doc.add (new Field (field, text.toString (), textType));
+        }
+
+        writer.addDocument (doc);
+      }
+    } finally {
+      writer.close ();
+    }
+  }
+}